@@ -0,0 +1,64 @@
+package metrics_influxdb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compute the interval between 2 reports from the outcome of their sends : the interval
+ * is doubled (up to a maximum) when the send of a report (to all its destinations) fails,
+ * is slow (more than half of the nominal period) or starts while the one of another report
+ * is still in flight, and is halved (down to the nominal period) after every healthy send.
+ */
+class AdaptiveInterval {
+	private final long maxMillis;
+	private volatile long nominalMillis;
+	private volatile long currentMillis;
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	AdaptiveInterval(long maxPeriod, TimeUnit unit) {
+		this.maxMillis = unit.toMillis(maxPeriod);
+	}
+
+	/**
+	 * Set the nominal period, and reset the current interval to it.
+	 */
+	void setNominal(long period, TimeUnit unit) {
+		nominalMillis = Math.max(1, unit.toMillis(period));
+		currentMillis = nominalMillis;
+	}
+
+	/**
+	 * Returns the interval (in milliseconds) to wait before the next report.
+	 */
+	long current() {
+		return currentMillis;
+	}
+
+	/**
+	 * Must be called once before the sends of a report, and followed by {@link #sendEnded(long, boolean, boolean)}.
+	 *
+	 * @return true if the send of a previous report is still in flight
+	 */
+	boolean sendStarted() {
+		return inFlight.incrementAndGet() > 1;
+	}
+
+	/**
+	 * @param latencyMillis the duration of the sends of the report
+	 * @param success false if the send to a destination failed
+	 * @param overlapped the value returned by {@link #sendStarted()}
+	 */
+	synchronized void sendEnded(long latencyMillis, boolean success, boolean overlapped) {
+		inFlight.decrementAndGet();
+		long nominal = nominalMillis;
+		if (nominal == 0) {
+			// not started (manual reports only)
+			return;
+		}
+		if (!success || overlapped || latencyMillis > nominal / 2) {
+			currentMillis = Math.min(Math.max(maxMillis, nominal), currentMillis * 2);
+		} else {
+			currentMillis = Math.max(nominal, currentMillis / 2);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package metrics_influxdb;
+
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * A pool of direct (off-heap) buffers of slabSize bytes, with a cap on the memory allocated,
+ * to encode the requests of the clients (see {@link InfluxdbHttp#bufferPool}) : a slab is
+ * leased for the send of a request and released after, so the memory used by all the clients
+ * sharing the pool (eg {@link #shared()}) is bounded, and large requests don't create large
+ * arrays on the heap.
+ *
+ * When the cap is reached, a lease waits up to maxWaitMillis for a slab to be released, then
+ * degrades to a heap buffer (garbage collected after the send), counted in {@link #getOverflows()}.
+ */
+public class BufferPool {
+	public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+	private static final BufferPool SHARED = new BufferPool(32 * 1024 * 1024, DEFAULT_SLAB_SIZE);
+
+	/**
+	 * Returns the pool shared by all the clients of the JVM configured to use it
+	 * (32MB of slabs of 64KB).
+	 */
+	public static BufferPool shared() {
+		return SHARED;
+	}
+
+	private final long maxBytes;
+	private final int slabSize;
+	/** The maximum time (in milliseconds) to wait for a slab when the pool is exhausted, 0 to degrade immediately */
+	public volatile long maxWaitMillis = 0;
+	// guarded by this
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private long allocatedBytes;
+	private long leasedBytes;
+	private long overflows;
+
+	/**
+	 * @param maxBytes the maximum memory allocated by the pool
+	 * @param slabSize the size of the buffers
+	 */
+	public BufferPool(long maxBytes, int slabSize) {
+		if (slabSize <= 0 || maxBytes < slabSize) {
+			throw new IllegalArgumentException("required : 0 < slabSize (" + slabSize + ") <= maxBytes (" + maxBytes + ")");
+		}
+		this.maxBytes = maxBytes;
+		this.slabSize = slabSize;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+	/**
+	 * Returns the memory allocated by the pool (leased or free slabs).
+	 */
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * Returns the memory of the slabs currently leased.
+	 */
+	public synchronized long getLeasedBytes() {
+		return leasedBytes;
+	}
+
+	/**
+	 * Returns the number of leases degraded to a heap buffer because the pool was exhausted.
+	 */
+	public synchronized long getOverflows() {
+		return overflows;
+	}
+
+	/**
+	 * Register the gauges of the utilization of the pool : name.max-bytes, name.allocated-bytes,
+	 * name.leased-bytes and name.overflows.
+	 */
+	public void registerMetrics(MetricRegistry registry, String name) {
+		registry.register(MetricRegistry.name(name, "max-bytes"), new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return getMaxBytes();
+			}
+		});
+		registry.register(MetricRegistry.name(name, "allocated-bytes"), new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return getAllocatedBytes();
+			}
+		});
+		registry.register(MetricRegistry.name(name, "leased-bytes"), new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return getLeasedBytes();
+			}
+		});
+		registry.register(MetricRegistry.name(name, "overflows"), new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return getOverflows();
+			}
+		});
+	}
+
+	/**
+	 * Returns a cleared slab, to give back with {@link #release(ByteBuffer)}.
+	 */
+	synchronized ByteBuffer acquire() throws InterruptedIOException {
+		long deadline = System.currentTimeMillis() + maxWaitMillis;
+		while (true) {
+			ByteBuffer slab = free.poll();
+			if (slab != null) {
+				leasedBytes += slabSize;
+				// not the covariant ByteBuffer.clear() of JDK 9+, missing on JDK 7 and 8
+				((Buffer) slab).clear();
+				return slab;
+			}
+			if (allocatedBytes + slabSize <= maxBytes) {
+				allocatedBytes += slabSize;
+				leasedBytes += slabSize;
+				return ByteBuffer.allocateDirect(slabSize);
+			}
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				break;
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for a buffer");
+			}
+		}
+		overflows++;
+		return ByteBuffer.allocate(slabSize);
+	}
+
+	synchronized void release(ByteBuffer slab) {
+		if (!slab.isDirect()) {
+			// a buffer of an overflow
+			return;
+		}
+		leasedBytes -= slabSize;
+		free.push(slab);
+		notifyAll();
+	}
+}
@@ -0,0 +1,205 @@
+package metrics_influxdb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limit the number of metrics reported per cycle to the maxMetrics most active ones.
+ *
+ * The activity of the metrics is tracked by a Filtered Space-Saving summary (Homem, Carvalho)
+ * of bounded memory : the counts of capacity metrics are kept in an indexed min-heap, the
+ * activity of the others is accumulated in a count-min sketch (conservative update). An untracked
+ * metric replaces the least active tracked one when its estimated count in the sketch is higher,
+ * so the long tail of rarely active metrics doesn't evict the heavy hitters.
+ * All counts decay at every cycle, so the summary follows the recent activity.
+ *
+ * A metric is admitted if it is tracked and was among the maxMetrics most active metrics at
+ * the end of the previous cycle (so the order of the calls doesn't matter), and less than
+ * maxMetrics metrics were admitted in the cycle.
+ *
+ * Not thread-safe.
+ */
+class CardinalityGuard {
+	private static final double DECAY = 0.8;
+	private static final int DEPTH = 4;
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+	private final int maxMetrics;
+	private final int capacity;
+	// min-heap of the tracked metrics, on counts
+	private final String[] names;
+	private final double[] counts;
+	private final Map<String, Integer> positions;
+	private int size;
+	// count-min sketch of the untracked metrics, DEPTH rows of 2^widthBits cells
+	private final double[] sketch;
+	private final int widthBits;
+	private double threshold = 0;
+	private int admitted;
+	private int suppressed;
+
+	/**
+	 * @param maxMetrics the maximum number of metrics admitted per cycle
+	 * @param capacity the number of metrics tracked (>= maxMetrics), bound the memory used
+	 */
+	CardinalityGuard(int maxMetrics, int capacity) {
+		if (maxMetrics < 1 || capacity < maxMetrics) {
+			throw new IllegalArgumentException("required : 0 < maxMetrics (" + maxMetrics + ") <= capacity (" + capacity + ")");
+		}
+		this.maxMetrics = maxMetrics;
+		this.capacity = capacity;
+		this.names = new String[capacity];
+		this.counts = new double[capacity];
+		this.positions = new HashMap<String, Integer>(capacity * 2);
+		this.widthBits = Math.max(4, 32 - Integer.numberOfLeadingZeros(capacity * 4 - 1));
+		this.sketch = new double[DEPTH << widthBits];
+	}
+
+	void beginCycle() {
+		for (int i = 0; i < size; i++) {
+			counts[i] *= DECAY;
+		}
+		for (int i = 0; i < sketch.length; i++) {
+			sketch[i] *= DECAY;
+		}
+		threshold *= DECAY;
+		admitted = 0;
+		suppressed = 0;
+	}
+
+	/**
+	 * Record the activity of the metric since the previous cycle and returns true if
+	 * it can be reported (else it should be folded into an aggregate).
+	 */
+	boolean admit(String name, long activity) {
+		// compare the count at the end of the previous cycle (decayed, like the threshold)
+		double previous = offer(name, Math.abs((double) activity));
+		if (previous >= 0 && admitted < maxMetrics && previous >= threshold) {
+			admitted++;
+			return true;
+		}
+		suppressed++;
+		return false;
+	}
+
+	/**
+	 * Returns the number of metrics not admitted since {@link #beginCycle()}.
+	 */
+	int suppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * Compute the threshold of admission of the next cycle.
+	 */
+	void endCycle() {
+		if (size < maxMetrics) {
+			threshold = 0;
+			return;
+		}
+		double[] sorted = Arrays.copyOf(counts, size);
+		Arrays.sort(sorted);
+		threshold = sorted[size - maxMetrics];
+	}
+
+	/**
+	 * Add weight to the count of the metric, returns its count before the addition (not the sum
+	 * minus weight, which can round below the threshold it equals) or -1 if it is not tracked.
+	 */
+	private double offer(String name, double weight) {
+		Integer position = positions.get(name);
+		if (position != null) {
+			int i = position;
+			double previous = counts[i];
+			counts[i] += weight;
+			siftDown(i);
+			return previous;
+		}
+		if (size < capacity) {
+			names[size] = name;
+			counts[size] = weight;
+			positions.put(name, size);
+			size++;
+			siftUp(size - 1);
+			return 0;
+		}
+		double estimate = addToSketch(name, weight);
+		if (estimate <= counts[0]) {
+			return -1;
+		}
+		// replace the least active metric (the root)
+		positions.remove(names[0]);
+		names[0] = name;
+		counts[0] = estimate;
+		positions.put(name, 0);
+		siftDown(0);
+		return estimate - weight;
+	}
+
+	/**
+	 * Add weight to the cells of the metric (only the ones lower than the new estimate),
+	 * returns the new estimate of its count.
+	 */
+	private double addToSketch(String name, double weight) {
+		int h = name.hashCode();
+		double estimate = Double.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, sketch[cell(h, row)]);
+		}
+		estimate += weight;
+		for (int row = 0; row < DEPTH; row++) {
+			int c = cell(h, row);
+			if (sketch[c] < estimate) {
+				sketch[c] = estimate;
+			}
+		}
+		return estimate;
+	}
+
+	private int cell(int h, int row) {
+		int x = h * SEEDS[row];
+		return (row << widthBits) + ((x ^ (x >>> 16)) & ((1 << widthBits) - 1));
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (counts[parent] <= counts[i]) {
+				return;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < size && counts[left] < counts[smallest]) {
+				smallest = left;
+			}
+			if (right < size && counts[right] < counts[smallest]) {
+				smallest = right;
+			}
+			if (smallest == i) {
+				return;
+			}
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+
+	private void swap(int i, int j) {
+		String n = names[i];
+		double c = counts[i];
+		names[i] = names[j];
+		counts[i] = counts[j];
+		names[j] = n;
+		counts[j] = c;
+		positions.put(names[i], i);
+		positions.put(names[j], j);
+	}
+}
@@ -0,0 +1,195 @@
+package metrics_influxdb;
+
+/**
+ * Round doubles to a number of decimals or of significant digits, and write them in the shortest
+ * form of the rounded value (no trailing zeros, no exponent, "12" instead of "12.0") directly into
+ * a StringBuilder, without the intermediate String of {@link Double#toString(double)}.
+ *
+ * Values out of the range of the fast path (more than 15 digits) are written in scientific
+ * notation when rounded to significant digits (eg "4.07E-10"), else (and below {@link Double#MIN_NORMAL})
+ * by {@link DoubleToDecimal}.
+ */
+final class DoubleFormat {
+	private static final int MAX_DIGITS = 15;
+	private static final double[] POW10 = new double[MAX_DIGITS + 4];
+	private static final long[] LONG_POW10 = new long[MAX_DIGITS + 4];
+	static {
+		long p = 1;
+		for (int i = 0; i < LONG_POW10.length; i++) {
+			LONG_POW10[i] = p;
+			POW10[i] = p;
+			p *= 10;
+		}
+	}
+
+	/**
+	 * A double rounded by a DoubleFormat, recognized by the JsonBuilders to be written by
+	 * {@link DoubleFormat#append(StringBuilder, double)}.
+	 */
+	static final class Rounded extends Number {
+		private static final long serialVersionUID = 1L;
+		private final double value;
+		private final DoubleFormat format;
+
+		Rounded(double value, DoubleFormat format) {
+			this.value = value;
+			this.format = format;
+		}
+
+		void appendTo(StringBuilder sb) {
+			format.append(sb, value);
+		}
+
+		@Override
+		public int intValue() {
+			return (int) value;
+		}
+
+		@Override
+		public long longValue() {
+			return (long) value;
+		}
+
+		@Override
+		public float floatValue() {
+			return (float) value;
+		}
+
+		@Override
+		public double doubleValue() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(24);
+			appendTo(sb);
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Returns a format rounding to decimals digits after the decimal point (to a multiple of
+	 * 10^-decimals when decimals is negative).
+	 */
+	static DoubleFormat decimals(int decimals) {
+		if (decimals > MAX_DIGITS || decimals < -MAX_DIGITS) {
+			throw new IllegalArgumentException("decimals should be in [-" + MAX_DIGITS + ", " + MAX_DIGITS + "] : " + decimals);
+		}
+		return new DoubleFormat(decimals, false);
+	}
+
+	/**
+	 * Returns a format rounding to digits significant digits.
+	 */
+	static DoubleFormat significantDigits(int digits) {
+		if (digits < 1 || digits > MAX_DIGITS) {
+			throw new IllegalArgumentException("digits should be in [1, " + MAX_DIGITS + "] : " + digits);
+		}
+		return new DoubleFormat(digits, true);
+	}
+
+	private final int digits;
+	private final boolean significant;
+
+	private DoubleFormat(int digits, boolean significant) {
+		this.digits = digits;
+		this.significant = significant;
+	}
+
+	/**
+	 * Returns value to be written rounded (NaN and infinite values are returned as is).
+	 */
+	Number round(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return value;
+		}
+		return new Rounded(value, this);
+	}
+
+	void append(StringBuilder sb, double value) {
+		if (value == 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+			appendFallback(sb, value);
+			return;
+		}
+		int decimals = digits;
+		if (significant) {
+			// the exponent can be off by one (log10 of 999.99...), it only changes the number of digits by one
+			int exponent = (int) Math.floor(Math.log10(Math.abs(value)));
+			decimals = digits - 1 - exponent;
+		}
+		if (decimals >= 0) {
+			double scaled = (decimals > MAX_DIGITS) ? Double.POSITIVE_INFINITY : value * POW10[decimals];
+			if (Math.abs(scaled) < POW10[MAX_DIGITS]) {
+				appendFixed(sb, Math.round(scaled), decimals);
+				return;
+			}
+		} else if (-decimals <= MAX_DIGITS && Math.abs(value) < POW10[MAX_DIGITS + 3]) {
+			sb.append(Math.round(value / POW10[-decimals]) * LONG_POW10[-decimals]);
+			return;
+		}
+		if (significant) {
+			appendScientific(sb, value, digits);
+		} else {
+			appendFallback(sb, value);
+		}
+	}
+
+	/**
+	 * Write value rounded to digits significant digits as mantissa "E" exponent.
+	 */
+	private static void appendScientific(StringBuilder sb, double value, int digits) {
+		if (Math.abs(value) < Double.MIN_NORMAL) {
+			// 10^exponent underflows for subnormals
+			DoubleToDecimal.append(sb, value);
+			return;
+		}
+		int exponent = (int) Math.floor(Math.log10(Math.abs(value)));
+		// 10^exponent is subnormal below 10^-307 : scale value up first
+		double mantissa = (exponent < -300) ? value * 1e16 / Math.pow(10, exponent + 16) : value / Math.pow(10, exponent);
+		if (Math.abs(mantissa) < 1) {
+			mantissa *= 10;
+			exponent--;
+		}
+		long unscaled = Math.round(mantissa * LONG_POW10[digits - 1]);
+		if (Math.abs(unscaled) >= LONG_POW10[digits]) {
+			// rounded up to 10
+			unscaled /= 10;
+			exponent++;
+		}
+		appendFixed(sb, unscaled, digits - 1);
+		sb.append('E').append(exponent);
+	}
+
+	/**
+	 * Write unscaled / 10^decimals, without trailing zeros.
+	 */
+	private static void appendFixed(StringBuilder sb, long unscaled, int decimals) {
+		if (unscaled < 0) {
+			sb.append('-');
+			unscaled = -unscaled;
+		}
+		long fraction = unscaled % LONG_POW10[decimals];
+		sb.append(unscaled / LONG_POW10[decimals]);
+		if (fraction == 0) {
+			return;
+		}
+		while (fraction % 10 == 0) {
+			fraction /= 10;
+			decimals--;
+		}
+		sb.append('.');
+		for (int i = decimals - 1; i > 0 && fraction < LONG_POW10[i]; i--) {
+			sb.append('0');
+		}
+		sb.append(fraction);
+	}
+
+	private static void appendFallback(StringBuilder sb, double value) {
+		if (value == 0) {
+			sb.append('0');
+		} else {
+			DoubleToDecimal.append(sb, value);
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package metrics_influxdb;
+
+import java.math.BigInteger;
+
+/**
+ * Write doubles and floats with the shortest decimal that rounds to the same value (the output of
+ * {@link Double#toString(double)} on JDK 19+, eg "0.1" for 0.1f, not "0.10000000149011612"),
+ * directly into a StringBuilder, without the intermediate String.
+ *
+ * The decimal is computed with the Schubfach algorithm (R. Giulietti, "The Schubfach way to render
+ * doubles") : the bounds of the rounding interval of the value are scaled by a 126-bit approximation
+ * of a power of 10 (the table is computed when the class is loaded), then the shortest decimal
+ * within the interval is picked with long arithmetic only.
+ * The format is the one of {@link Double#toString(double)} : plain between 10^-3 and 10^7
+ * (eg "12.0", "0.25"), else computerized scientific notation (eg "1.0E10", "4.9E-324").
+ */
+final class DoubleToDecimal {
+	// the limits of the decimal exponent k of the table of 10^-k
+	private static final int K_MIN = -324;
+	private static final int K_MAX = 292;
+	// 10^-k = g * 2^(r - 125) (rounded up), g = g1 * 2^63 + g0, r = flog2pow10(-k)
+	private static final long[] G1 = new long[K_MAX - K_MIN + 1];
+	private static final long[] G0 = new long[K_MAX - K_MIN + 1];
+	static {
+		BigInteger mask63 = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+		for (int k = K_MIN; k <= K_MAX; k++) {
+			int shift = 125 - flog2pow10(-k);
+			BigInteger g;
+			if (k <= 0) {
+				g = BigInteger.TEN.pow(-k);
+				g = (shift >= 0) ? g.shiftLeft(shift) : g.shiftRight(-shift);
+			} else {
+				g = BigInteger.ONE.shiftLeft(shift).divide(BigInteger.TEN.pow(k));
+			}
+			g = g.add(BigInteger.ONE);
+			G1[k - K_MIN] = g.shiftRight(63).longValue();
+			G0[k - K_MIN] = g.and(mask63).longValue();
+		}
+	}
+	// the digits of 0..99
+	private static final char[] DIGIT_TENS = new char[100];
+	private static final char[] DIGIT_ONES = new char[100];
+	static {
+		for (int i = 0; i < 100; i++) {
+			DIGIT_TENS[i] = (char) ('0' + i / 10);
+			DIGIT_ONES[i] = (char) ('0' + i % 10);
+		}
+	}
+
+	private static final long DOUBLE_C_MIN = 1L << 52;
+	private static final int DOUBLE_Q_MIN = -1074;
+	private static final long DOUBLE_C_TINY = 3;
+	private static final long FLOAT_C_MIN = 1L << 23;
+	private static final int FLOAT_Q_MIN = -149;
+	private static final long FLOAT_C_TINY = 8;
+
+	private DoubleToDecimal() {
+	}
+
+	static void append(StringBuilder sb, double v) {
+		long bits = Double.doubleToRawLongBits(v);
+		long t = bits & (DOUBLE_C_MIN - 1);
+		int bq = (int) (bits >>> 52) & 0x7ff;
+		if (bq == 0x7ff) {
+			sb.append(v);
+			return;
+		}
+		if (bits < 0) {
+			sb.append('-');
+		}
+		if (bq != 0) {
+			int mq = -DOUBLE_Q_MIN + 1 - bq;
+			long c = DOUBLE_C_MIN | t;
+			// integers fast path
+			if (0 < mq && mq < 53) {
+				long f = c >> mq;
+				if (f << mq == c) {
+					appendDecimal(sb, f, 0);
+					return;
+				}
+			}
+			toDecimal(sb, -mq, c, 0, DOUBLE_C_MIN, DOUBLE_Q_MIN);
+		} else if (t == 0) {
+			sb.append("0.0");
+		} else if (t < DOUBLE_C_TINY) {
+			toDecimal(sb, DOUBLE_Q_MIN, 10 * t, -1, DOUBLE_C_MIN, DOUBLE_Q_MIN);
+		} else {
+			toDecimal(sb, DOUBLE_Q_MIN, t, 0, DOUBLE_C_MIN, DOUBLE_Q_MIN);
+		}
+	}
+
+	static void append(StringBuilder sb, float v) {
+		int bits = Float.floatToRawIntBits(v);
+		long t = bits & (FLOAT_C_MIN - 1);
+		int bq = (bits >>> 23) & 0xff;
+		if (bq == 0xff) {
+			sb.append(v);
+			return;
+		}
+		if (bits < 0) {
+			sb.append('-');
+		}
+		if (bq != 0) {
+			toDecimal(sb, FLOAT_Q_MIN - 1 + bq, FLOAT_C_MIN | t, 0, FLOAT_C_MIN, FLOAT_Q_MIN);
+		} else if (t == 0) {
+			sb.append("0.0");
+		} else if (t < FLOAT_C_TINY) {
+			toDecimal(sb, FLOAT_Q_MIN, 10 * t, -1, FLOAT_C_MIN, FLOAT_Q_MIN);
+		} else {
+			toDecimal(sb, FLOAT_Q_MIN, t, 0, FLOAT_C_MIN, FLOAT_Q_MIN);
+		}
+	}
+
+	/**
+	 * Write the shortest decimal in the rounding interval of c * 2^q (the interval is asymmetric
+	 * at the powers of 2, c == cMin) times 10^-dk.
+	 */
+	private static void toDecimal(StringBuilder sb, int q, long c, int dk, long cMin, int qMin) {
+		int out = (int) c & 0x1;
+		long cb = c << 2;
+		long cbr = cb + 2;
+		long cbl;
+		int k;
+		if (c != cMin || q == qMin) {
+			cbl = cb - 2;
+			k = flog10pow2(q);
+		} else {
+			cbl = cb - 1;
+			k = flog10threeQuartersPow2(q);
+		}
+		int h = q + flog2pow10(-k) + 2;
+
+		long g1 = G1[k - K_MIN];
+		long g0 = G0[k - K_MIN];
+
+		long vb = rop(g1, g0, cb << h);
+		long vbl = rop(g1, g0, cbl << h);
+		long vbr = rop(g1, g0, cbr << h);
+
+		long s = vb >> 2;
+		if (s >= 100) {
+			// s / 10 * 10 : one digit less, if in the interval
+			long sp10 = 10 * multiplyHigh(s, 115292150460684698L << 4);
+			long tp10 = sp10 + 10;
+			boolean upin = vbl + out <= sp10 << 2;
+			boolean wpin = (tp10 << 2) + out <= vbr;
+			if (upin != wpin) {
+				appendDecimal(sb, upin ? sp10 : tp10, k);
+				return;
+			}
+		}
+		long t = s + 1;
+		boolean uin = vbl + out <= s << 2;
+		boolean win = (t << 2) + out <= vbr;
+		if (uin != win) {
+			appendDecimal(sb, uin ? s : t, k + dk);
+			return;
+		}
+		// both in the interval : the closest, the even one on a tie
+		long cmp = vb - ((s + t) << 1);
+		appendDecimal(sb, (cmp < 0 || cmp == 0 && (s & 0x1) == 0) ? s : t, k + dk);
+	}
+
+	/**
+	 * Returns (g * cp) / 2^127 (g = g1 * 2^63 + g0), rounded to odd.
+	 */
+	private static long rop(long g1, long g0, long cp) {
+		long x1 = multiplyHigh(g0, cp);
+		long y0 = g1 * cp;
+		long y1 = multiplyHigh(g1, cp);
+		long z = (y0 >>> 1) + x1;
+		long vbp = y1 + (z >>> 63);
+		return vbp | ((z & Long.MAX_VALUE) + Long.MAX_VALUE) >>> 63;
+	}
+
+	/**
+	 * Write f * 10^e (f > 0) without trailing zeros, in the format of Double.toString.
+	 */
+	private static void appendDecimal(StringBuilder sb, long f, int e) {
+		// the digits of f (at most 17) in digits[start..end[, without trailing zeros
+		char[] digits = new char[24];
+		int end = 24;
+		int start = end;
+		while (f >= 100000000) {
+			long q = f / 100000000;
+			start = putDigits(digits, start, (int) (f - q * 100000000), 8);
+			f = q;
+		}
+		start = putDigits(digits, start, (int) f, 0);
+		while (digits[end - 1] == '0') {
+			end--;
+			e++;
+		}
+		int len = end - start;
+		// f * 10^e = 0.digits * 10^exp, formatted in chars[0..n[
+		int exp = len + e;
+		char[] chars = new char[32];
+		int n = 0;
+		if (0 < exp && exp <= 7) {
+			if (len <= exp) {
+				System.arraycopy(digits, start, chars, 0, len);
+				for (n = len; n < exp; n++) {
+					chars[n] = '0';
+				}
+				chars[n++] = '.';
+				chars[n++] = '0';
+			} else {
+				System.arraycopy(digits, start, chars, 0, exp);
+				chars[exp] = '.';
+				System.arraycopy(digits, start + exp, chars, exp + 1, len - exp);
+				n = len + 1;
+			}
+		} else if (-3 < exp && exp <= 0) {
+			chars[n++] = '0';
+			chars[n++] = '.';
+			for (int i = exp; i < 0; i++) {
+				chars[n++] = '0';
+			}
+			System.arraycopy(digits, start, chars, n, len);
+			n += len;
+		} else {
+			chars[n++] = digits[start];
+			chars[n++] = '.';
+			if (len == 1) {
+				chars[n++] = '0';
+			} else {
+				System.arraycopy(digits, start + 1, chars, n, len - 1);
+				n += len - 1;
+			}
+			chars[n++] = 'E';
+			int x = exp - 1;
+			if (x < 0) {
+				chars[n++] = '-';
+				x = -x;
+			}
+			if (x >= 100) {
+				chars[n++] = (char) ('0' + x / 100);
+				x %= 100;
+				chars[n++] = DIGIT_TENS[x];
+			} else if (x >= 10) {
+				chars[n++] = DIGIT_TENS[x];
+			}
+			chars[n++] = DIGIT_ONES[x];
+		}
+		sb.append(chars, 0, n);
+	}
+
+	/**
+	 * Write the digits of v (at least minDigits, left padded with zeros) before digits[end],
+	 * returns the index of the first digit written.
+	 */
+	private static int putDigits(char[] digits, int end, int v, int minDigits) {
+		int i = end;
+		while (v >= 100) {
+			int q = v / 100;
+			int r = v - q * 100;
+			digits[--i] = DIGIT_ONES[r];
+			digits[--i] = DIGIT_TENS[r];
+			v = q;
+		}
+		digits[--i] = DIGIT_ONES[v];
+		if (v >= 10) {
+			digits[--i] = DIGIT_TENS[v];
+		}
+		while (end - i < minDigits) {
+			digits[--i] = '0';
+		}
+		return i;
+	}
+
+	// floor(log10(2^e))
+	private static int flog10pow2(int e) {
+		return (int) (e * 661971961083L >> 41);
+	}
+
+	// floor(log10(3/4 * 2^e))
+	private static int flog10threeQuartersPow2(int e) {
+		return (int) (e * 661971961083L - 274743187321L >> 41);
+	}
+
+	// floor(log2(10^e))
+	private static int flog2pow10(int e) {
+		return (int) (e * 913124641741L >> 38);
+	}
+
+	// the high 64 bits of the 128-bit product x * y (Math.multiplyHigh of JDK 9)
+	private static long multiplyHigh(long x, long y) {
+		long x1 = x >> 32;
+		long x2 = x & 0xFFFFFFFFL;
+		long y1 = y >> 32;
+		long y2 = y & 0xFFFFFFFFL;
+		long z2 = x2 * y2;
+		long t = x1 * y2 + (z2 >>> 32);
+		long z1 = t & 0xFFFFFFFFL;
+		long z0 = t >> 32;
+		z1 += x2 * y1;
+		return x1 * y1 + z0 + (z1 >> 32);
+	}
+}
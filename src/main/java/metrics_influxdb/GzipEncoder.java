@@ -0,0 +1,146 @@
+package metrics_influxdb;
+
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encode payloads into the gzip format (RFC 1952) reusing the same {@link Deflater}
+ * and output buffer between calls (GZIPOutputStream allocates a new native Deflater
+ * for every stream).
+ *
+ * Not thread-safe.
+ */
+class GzipEncoder {
+	private static final byte[] HEADER = {
+		(byte) 0x1f, (byte) 0x8b, // magic
+		Deflater.DEFLATED, // compression method
+		0, // flags
+		0, 0, 0, 0, // modification time
+		0, // extra flags
+		(byte) 0xff // OS : unknown
+	};
+	private static final int TRAILER_SIZE = 8;
+
+	private final Deflater deflater;
+	private final CRC32 crc = new CRC32();
+	private byte[] out = new byte[1024];
+	private int length;
+	// size of the input (modulo 2^32) of the current encode
+	private int inputLength;
+	private int level;
+	private final OutputStream input = new OutputStream() {
+		@Override
+		public void write(int b) {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			update(b, off, len);
+		}
+	};
+
+	GzipEncoder(int level) {
+		this.deflater = new Deflater(level, true);
+		this.level = level;
+	}
+
+	int level() {
+		return level;
+	}
+
+	/**
+	 * Change the compression level, applied on the next {@link #encode(byte[], int)}.
+	 */
+	void setLevel(int level) {
+		this.level = level;
+		deflater.setLevel(level);
+	}
+
+	/**
+	 * Compress {@code src[0..len[}, the result is available in {@link #buffer()}[0..{@link #length()}[
+	 * until the next call.
+	 */
+	void encode(byte[] src, int len) {
+		begin();
+		update(src, 0, len);
+		finish();
+	}
+
+	/**
+	 * Returns a stream compressing what is written to it between {@link #begin()} and {@link #finish()}.
+	 */
+	OutputStream input() {
+		return input;
+	}
+
+	/**
+	 * Start the compression of a payload written to {@link #input()}.
+	 */
+	void begin() {
+		deflater.reset();
+		crc.reset();
+		inputLength = 0;
+		System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+		length = HEADER.length;
+	}
+
+	private void update(byte[] src, int off, int len) {
+		crc.update(src, off, len);
+		inputLength += len;
+		deflater.setInput(src, off, len);
+		while (!deflater.needsInput()) {
+			if (length == out.length) {
+				grow();
+			}
+			length += deflater.deflate(out, length, out.length - length);
+		}
+	}
+
+	/**
+	 * End the compression started by {@link #begin()}, the result is available as with {@link #encode(byte[], int)}.
+	 */
+	void finish() {
+		deflater.finish();
+		while (!deflater.finished()) {
+			if (length == out.length) {
+				grow();
+			}
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		if (out.length - length < TRAILER_SIZE) {
+			grow();
+		}
+		writeIntLE((int) crc.getValue());
+		writeIntLE(inputLength);
+	}
+
+	byte[] buffer() {
+		return out;
+	}
+
+	int length() {
+		return length;
+	}
+
+	/**
+	 * Release the native resources of the underlying {@link Deflater}.
+	 */
+	void end() {
+		deflater.end();
+	}
+
+	private void grow() {
+		byte[] b = new byte[out.length * 2];
+		System.arraycopy(out, 0, b, 0, length);
+		out = b;
+	}
+
+	private void writeIntLE(int v) {
+		out[length++] = (byte) v;
+		out[length++] = (byte) (v >> 8);
+		out[length++] = (byte) (v >> 16);
+		out[length++] = (byte) (v >> 24);
+	}
+}
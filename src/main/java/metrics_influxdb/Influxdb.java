@@ -6,4 +6,21 @@ interface Influxdb {
 	public long convertTimestamp(long timestamp);
 	public void appendSeries(String namePrefix, String name, String nameSuffix, String[] columns, Object[][] points);
 	public int sendRequest(boolean throwExc, boolean printJson) throws Exception;
+
+	/**
+	 * Create a new, empty, request independent of the one used by appendSeries(...) and
+	 * sendRequest(boolean, boolean), so several requests can be built and sent concurrently.
+	 */
+	public JsonBuilder newRequest();
+
+	/**
+	 * Returns the request (created by {@link #newRequest()}) reset to be reused, or a new request
+	 * if the encoding used by the client changed since its creation.
+	 */
+	public JsonBuilder recycleRequest(JsonBuilder request);
+
+	/**
+	 * Send a request created by {@link #newRequest()}. Can be called concurrently with different requests.
+	 */
+	public int sendRequest(JsonBuilder request, boolean throwExc, boolean printJson) throws Exception;
 }
@@ -0,0 +1,421 @@
+package metrics_influxdb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A host-local agent : it receives the series sent by the {@link InfluxdbUdp} clients of the
+ * processes of the host, merges the series with the same name and forwards them, once per
+ * period, with one request of its own client (eg an {@link InfluxdbHttp}).
+ *
+ * The last point of every sender (a sender is identified by its address, see {@link InfluxdbUdp})
+ * is kept across the forwards, until the sender has sent nothing for senderTimeout : every forward
+ * merges the last point of all the live senders, so a sender reporting less often than the agent
+ * forwards doesn't make the sums swing. The reporters should report cumulative counts (not
+ * convertCountsToDeltas) at a period shorter than senderTimeout (3 periods of the agent by default).
+ * A restarted sender (on a new port) is counted twice until its previous address expires.
+ * The points of the senders are merged by column :
+ * <ul>
+ * <li>count, run-count, metrics and the rates (one-minute, five-minute, fifteen-minute, mean-rate, count-rate) are summed</li>
+ * <li>max and the percentiles are the max (an upper bound of the percentiles of the union)</li>
+ * <li>min is the min</li>
+ * <li>mean and std-dev are pooled, weighted by count</li>
+ * <li>time is the time of the forward</li>
+ * <li>the other columns (eg value of gauges) are the last value received</li>
+ * </ul>
+ */
+public class InfluxdbAgent {
+	private static final Logger LOGGER = LoggerFactory.getLogger(InfluxdbAgent.class);
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Set<String> SUMMED_COLUMNS = new HashSet<String>(Arrays.asList(
+		"count", "run-count", "metrics"
+		, "one-minute", "five-minute", "fifteen-minute", "mean-rate", "count-rate"
+	));
+	private static final String AGENT_NAME = "influxdb-agent";
+
+	private final InetSocketAddress bindAddress;
+	private final Influxdb influxdb;
+	/** true => to print the received datagrams on System.err */
+	public boolean debugJson = false;
+	/** The time (in milliseconds) after which the points of a silent sender are forgotten, negative for 3 periods of the agent, 0 to never forget them */
+	public long senderTimeout = -1;
+
+	private DatagramChannel channel;
+	private ScheduledExecutorService scheduler;
+	private long periodMillis;
+	// the series of the live senders, by name and columns (guarded by this)
+	private final Map<String, Series> series = new LinkedHashMap<String, Series>();
+
+	/**
+	 * A series and the last point received from every sender, in the order of reception.
+	 */
+	static final class Series {
+		final String name;
+		final String[] columns;
+		final Map<SocketAddress, Object[]> points = new LinkedHashMap<SocketAddress, Object[]>();
+		// the time of reception of the points
+		final Map<SocketAddress, Long> times = new LinkedHashMap<SocketAddress, Long>();
+
+		Series(String name, String[] columns) {
+			this.name = name;
+			this.columns = columns;
+		}
+	}
+
+	/**
+	 * Agent listening on the loopback.
+	 *
+	 * @param port the UDP port to listen on (the port of the InfluxdbUdp of the processes)
+	 * @param influxdb the client to forward the merged series to
+	 */
+	public InfluxdbAgent(int port, Influxdb influxdb) {
+		this(new InetSocketAddress("127.0.0.1", port), influxdb);
+	}
+
+	public InfluxdbAgent(InetSocketAddress bindAddress, Influxdb influxdb) {
+		this.bindAddress = bindAddress;
+		this.influxdb = influxdb;
+	}
+
+	/**
+	 * Start to listen, and to forward the merged series at the given period.
+	 */
+	public synchronized void start(long period, TimeUnit unit) throws IOException {
+		if (channel != null) {
+			throw new IllegalStateException("agent already started");
+		}
+		channel = DatagramChannel.open();
+		// the processes of the host report at the same time
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+		channel.bind(bindAddress);
+		periodMillis = unit.toMillis(period);
+		scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, AGENT_NAME);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final DatagramChannel c = channel;
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				receive(c);
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					forward();
+				} catch (RuntimeException e) {
+					LOGGER.warn("RuntimeException thrown from {}#forward. Exception was suppressed.", InfluxdbAgent.class.getSimpleName(), e);
+				}
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Stop to listen, and forward the series a last time.
+	 */
+	public void stop() {
+		synchronized (this) {
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			scheduler.shutdown();
+			channel = null;
+			scheduler = null;
+		}
+		forward();
+	}
+
+	/**
+	 * Returns the local address the agent listens on (useful with the ephemeral port 0).
+	 */
+	public synchronized InetSocketAddress getLocalAddress() throws IOException {
+		return (channel == null) ? bindAddress : (InetSocketAddress) channel.getLocalAddress();
+	}
+
+	private void receive(DatagramChannel c) {
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+		try {
+			while (true) {
+				// the Buffer methods, not the covariant overrides of ByteBuffer (JDK 9+), to run on JDK 7 and 8
+				((Buffer) buffer).clear();
+				SocketAddress sender = c.receive(buffer);
+				((Buffer) buffer).flip();
+				String json = UTF_8.decode(buffer).toString();
+				if (debugJson) {
+					System.err.println(json);
+				}
+				try {
+					merge(sender, JsonParser.parse(json));
+				} catch (RuntimeException e) {
+					LOGGER.warn("Invalid payload from {}, ignored", sender, e);
+				}
+			}
+		} catch (ClosedChannelException e) {
+			// stopped
+		} catch (IOException e) {
+			LOGGER.warn("Unable to receive, the agent stops to listen", e);
+		}
+	}
+
+	/**
+	 * Keep the last point of every series of the payload (a JSON array of series).
+	 */
+	void merge(SocketAddress sender, Object payload) {
+		merge(sender, payload, System.currentTimeMillis());
+	}
+
+	void merge(SocketAddress sender, Object payload, long now) {
+		for (Object o : (List<?>) payload) {
+			Map<?, ?> s = (Map<?, ?>) o;
+			String name = (String) s.get("name");
+			List<?> columns = (List<?>) s.get("columns");
+			List<?> points = (List<?>) s.get("points");
+			if (name == null || columns == null || points == null || points.isEmpty()) {
+				continue;
+			}
+			List<?> last = (List<?>) points.get(points.size() - 1);
+			if (last.size() != columns.size()) {
+				throw new IllegalArgumentException("series " + name + " : " + columns.size() + " columns but " + last.size() + " values");
+			}
+			String key = name + columns;
+			synchronized (this) {
+				Series known = series.get(key);
+				if (known == null) {
+					known = new Series(name, columns.toArray(new String[columns.size()]));
+					series.put(key, known);
+				}
+				known.points.remove(sender);
+				known.points.put(sender, last.toArray());
+				known.times.put(sender, now);
+			}
+		}
+	}
+
+	/**
+	 * Send the series of the live senders (if any), merged.
+	 */
+	public void forward() {
+		forward(System.currentTimeMillis());
+	}
+
+	void forward(long now) {
+		long timestamp = influxdb.convertTimestamp(now);
+		JsonBuilder request = influxdb.newRequest();
+		Object[][] points = new Object[1][];
+		synchronized (this) {
+			expire(now);
+			if (series.isEmpty()) {
+				return;
+			}
+			for (Series s : series.values()) {
+				points[0] = mergePoints(s.columns, s.points.values());
+				int time = indexOf(s.columns, "time");
+				if (time >= 0) {
+					points[0][time] = timestamp;
+				}
+				request.appendSeries("", s.name, "", s.columns, points);
+			}
+		}
+		try {
+			influxdb.sendRequest(request, true, false);
+		} catch (Exception e) {
+			LOGGER.warn("Unable to forward to InfluxDB. Discarding data.", e);
+		}
+	}
+
+	/**
+	 * Forget the points of the senders silent for senderTimeout, and the series left without point.
+	 */
+	private void expire(long now) {
+		long timeout = (senderTimeout >= 0) ? senderTimeout : 3 * periodMillis;
+		if (timeout <= 0) {
+			// never, or not started (forwards on demand only)
+			return;
+		}
+		for (Iterator<Series> it = series.values().iterator(); it.hasNext();) {
+			Series s = it.next();
+			for (Iterator<Map.Entry<SocketAddress, Long>> times = s.times.entrySet().iterator(); times.hasNext();) {
+				Map.Entry<SocketAddress, Long> e = times.next();
+				if (now - e.getValue() > timeout) {
+					s.points.remove(e.getKey());
+					times.remove();
+				}
+			}
+			if (s.points.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+
+	static Object[] mergePoints(String[] columns, Collection<Object[]> points) {
+		Object[] back = new Object[columns.length];
+		int count = indexOf(columns, "count");
+		int mean = indexOf(columns, "mean");
+		for (int j = 0; j < columns.length; j++) {
+			String column = columns[j];
+			if (SUMMED_COLUMNS.contains(column)) {
+				back[j] = sum(points, j);
+			} else if ("max".equals(column) || column.endsWith("-percentile")) {
+				back[j] = extremum(points, j, true);
+			} else if ("min".equals(column)) {
+				back[j] = extremum(points, j, false);
+			} else if ("mean".equals(column)) {
+				back[j] = weightedMean(points, j, count);
+			} else if ("std-dev".equals(column)) {
+				back[j] = pooledStdDev(points, j, mean, count);
+			} else {
+				for (Object[] p : points) {
+					if (p[j] != null) {
+						back[j] = p[j];
+					}
+				}
+			}
+		}
+		return back;
+	}
+
+	private static Number sum(Collection<Object[]> points, int j) {
+		long sumLong = 0;
+		double sumDouble = 0;
+		boolean integral = true;
+		boolean found = false;
+		for (Object[] p : points) {
+			if (!(p[j] instanceof Number)) {
+				continue;
+			}
+			found = true;
+			if (p[j] instanceof Long) {
+				sumLong += (Long) p[j];
+			} else {
+				integral = false;
+				sumDouble += ((Number) p[j]).doubleValue();
+			}
+		}
+		if (!found) {
+			return null;
+		}
+		return integral ? (Number) sumLong : (Number) (sumDouble + sumLong);
+	}
+
+	private static Number extremum(Collection<Object[]> points, int j, boolean max) {
+		Number back = null;
+		for (Object[] p : points) {
+			if (!(p[j] instanceof Number)) {
+				continue;
+			}
+			Number n = (Number) p[j];
+			if (back == null || (max ? n.doubleValue() > back.doubleValue() : n.doubleValue() < back.doubleValue())) {
+				back = n;
+			}
+		}
+		return back;
+	}
+
+	private static double weight(Object[] p, int count) {
+		if (count >= 0 && p[count] instanceof Number) {
+			return ((Number) p[count]).doubleValue();
+		}
+		return 1;
+	}
+
+	private static Double weightedMean(Collection<Object[]> points, int j, int count) {
+		double sum = 0;
+		double weights = 0;
+		for (Object[] p : points) {
+			if (p[j] instanceof Number) {
+				double w = weight(p, count);
+				sum += w * ((Number) p[j]).doubleValue();
+				weights += w;
+			}
+		}
+		return (weights > 0) ? sum / weights : null;
+	}
+
+	/**
+	 * The standard deviation of the union : sqrt(sum(w * (sd^2 + mean^2)) / sum(w) - mean(union)^2).
+	 */
+	private static Double pooledStdDev(Collection<Object[]> points, int j, int mean, int count) {
+		if (mean < 0) {
+			return weightedMean(points, j, count);
+		}
+		double sum = 0;
+		double sumSquares = 0;
+		double weights = 0;
+		for (Object[] p : points) {
+			if (p[j] instanceof Number && p[mean] instanceof Number) {
+				double w = weight(p, count);
+				double sd = ((Number) p[j]).doubleValue();
+				double m = ((Number) p[mean]).doubleValue();
+				sum += w * m;
+				sumSquares += w * (sd * sd + m * m);
+				weights += w;
+			}
+		}
+		if (weights <= 0) {
+			return null;
+		}
+		double m = sum / weights;
+		return Math.sqrt(Math.max(0, sumSquares / weights - m * m));
+	}
+
+	private static int indexOf(String[] columns, String column) {
+		for (int i = 0; i < columns.length; i++) {
+			if (column.equals(columns[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Run an agent forwarding to InfluxDB over HTTP, until the process is killed.
+	 *
+	 * Usage : InfluxdbAgent &lt;udp port&gt; &lt;influxdb host&gt; &lt;influxdb port&gt; &lt;database&gt; &lt;username&gt; &lt;password&gt; [period in seconds, default 10]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 6) {
+			System.err.println("usage : InfluxdbAgent <udp port> <influxdb host> <influxdb port> <database> <username> <password> [period in seconds, default 10]");
+			System.exit(1);
+		}
+		InfluxdbHttp influxdb = new InfluxdbHttp(args[1], Integer.parseInt(args[2]), args[3], args[4], args[5]);
+		long period = (args.length > 6) ? Long.parseLong(args[6]) : 10;
+		InfluxdbAgent agent = new InfluxdbAgent(Integer.parseInt(args[0]), influxdb);
+		agent.start(period, TimeUnit.SECONDS);
+		while (true) {
+			TimeUnit.DAYS.sleep(1);
+		}
+	}
+}
@@ -13,12 +13,30 @@
 package metrics_influxdb;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Constructor;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 /**
  * A client to send data to a InfluxDB server via HTTP protocol.
@@ -42,6 +60,12 @@ import java.util.concurrent.TimeUnit;
  */
 public class InfluxdbHttp implements Influxdb {
 	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+	private static final int AUTO_COMPRESSION_THRESHOLD = 1024;
+	private static final int PROBE_TIMEOUT = 5000;
+	private static final VersionNumber VERSION_LINE_PROTOCOL = new VersionNumber("0.9.0");
+	private static final VersionNumber VERSION_GZIP = new VersionNumber("1.0.0");
 
 	public static String toTimePrecision(TimeUnit t) {
 		switch (t) {
@@ -56,10 +80,71 @@ public class InfluxdbHttp implements Influxdb {
 		}
 	}
 
+	/** The url of the series API of InfluxDB 0.8 (JSON) */
 	public final URL url;
+	/** The url of the write API of InfluxDB 0.9+ (line protocol) */
+	public final URL writeUrl;
+	private final URL pingUrl;
+	/**
+	 * The period (in milliseconds) between 2 probes of the version of the server (on /ping),
+	 * to choose the wire protocol of the next requests : line protocol on 0.9+ (and gzip on 1.0+),
+	 * the JSON series API on 0.8 (or when the version is unknown).
+	 * The first probe starts (in background) when the reporter starts or with the first request
+	 * (not with the client, so a client never used holds no thread), the next ones when a request needs
+	 * a client whose period is elapsed, or after a 404.
+	 * A negative value disables the probe, requests are then sent to the JSON series API.
+	 */
+	public long versionProbePeriod = TimeUnit.MINUTES.toMillis(10);
+	private volatile VersionNumber serverVersion;
+	private volatile long nextVersionProbe = 0;
+	private final AtomicBoolean probing = new AtomicBoolean();
 	/** true => to print Json on System.err */
 	public boolean debugJson = false;
+	/**
+	 * The request of appendSeries(...), its class is also the class of the requests of
+	 * {@link #newRequest()} (eg of InfluxdbReporter) if it is replaced by a custom builder
+	 * (with a constructor without argument), sent to the JSON series API.
+	 */
 	public JsonBuilder jsonBuilder = new JsonBuilderDefault();
+	/**
+	 * Payloads of at least compressionThreshold bytes are sent gzip encoded
+	 * (Content-Encoding: gzip). A negative value (the default) only compresses payloads of
+	 * at least 1KB if the version of the server is known to accept gzip, use Integer.MAX_VALUE
+	 * to never compress.
+	 * Compression is turned off automatically if the server rejects the encoding (a 415, or a 400 about gzip).
+	 */
+	public int compressionThreshold = -1;
+	/** The level (0-9) of the compression, see {@link Deflater} */
+	public int compressionLevel = Deflater.BEST_SPEED;
+	private volatile boolean compressionRejected = false;
+	// one GzipEncoder per concurrent sendRequest
+	private final ConcurrentLinkedQueue<GzipEncoder> gzipEncoders = new ConcurrentLinkedQueue<GzipEncoder>();
+	/**
+	 * Split a request into chunks (POSTed independently) of at most maxChunkSize chars
+	 * (a single larger series is sent alone), a negative value disables the limit.
+	 * The size is measured in chars before the UTF-8 encoding (and the compression) : it is the
+	 * size in bytes for ASCII names, a non-ASCII char takes up to 3 bytes on the wire.
+	 */
+	public int maxChunkSize = -1;
+	/** Split a request into chunks of at most maxChunkSeries series, 0 or a negative value disables the limit. */
+	public int maxChunkSeries = -1;
+	/** The number of chunks sent concurrently. */
+	public int chunkParallelism = 1;
+	/**
+	 * The number of times a failed chunk of a request split by maxChunkSize or maxChunkSeries is sent
+	 * again, only the failed chunks are retried, and only on errors which can be transient (IO errors,
+	 * 5xx, 408 and 429). A request not split is sent once, and left to the next report.
+	 */
+	public int chunkRetries = 1;
+	private ThreadPoolExecutor chunkExecutor;
+	/**
+	 * The pool of the buffers to encode the requests, eg {@link BufferPool#shared()} to bound the memory
+	 * used by all the clients of the JVM and keep the payloads off-heap : a request is encoded through
+	 * a single slab, streamed to the connection (or to the compression) every time it is full.
+	 * null (the default) encodes through a heap buffer, garbage collected after every request.
+	 */
+	public BufferPool bufferPool = null;
+
 	/**
 	 * Constructor with the InfluxDB time_precision parameter set to TimeUnit.MILLISECONDS
 	 * @throws IOException If the URL is malformed
@@ -99,6 +184,82 @@ public class InfluxdbHttp implements Influxdb {
 			+ "&p=" + password
 			+ "&time_precision=" + toTimePrecision(timePrecision)
 		);
+		this.writeUrl = new URL("http", host, port,
+			path + "/write?db=" + URLEncoder.encode(database, UTF_8.name())
+			+ "&u=" + URLEncoder.encode(username, UTF_8.name())
+			+ "&p=" + password
+			+ "&precision=" + toTimePrecision(timePrecision)
+		);
+		this.pingUrl = new URL("http", host, port, path + "/ping");
+	}
+
+	/**
+	 * Returns the version of the server found by the last probe, null if unknown.
+	 */
+	public VersionNumber getServerVersion() {
+		return serverVersion;
+	}
+
+	/**
+	 * Returns true if the requests are sent in line protocol (InfluxDB 0.9+).
+	 */
+	public boolean isLineProtocol() {
+		VersionNumber v = knownVersion();
+		return v != null && v.compareTo(VERSION_LINE_PROTOCOL) >= 0;
+	}
+
+	/**
+	 * Returns the version of the server, null if unknown or if the probe is disabled.
+	 */
+	private VersionNumber knownVersion() {
+		return (versionProbePeriod < 0) ? null : serverVersion;
+	}
+
+	/**
+	 * Start a probe of the version of the server in background if versionProbePeriod is elapsed,
+	 * the requests are encoded for the version known until the probe ends (so the sends never
+	 * wait for a probe).
+	 */
+	void probeVersionIfNeeded() {
+		long period = versionProbePeriod;
+		long now = System.currentTimeMillis();
+		if (period < 0 || now < nextVersionProbe || !probing.compareAndSet(false, true)) {
+			return;
+		}
+		nextVersionProbe = now + period;
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					probeVersion();
+				} finally {
+					probing.set(false);
+				}
+			}
+		}, "influxdb-http-probe");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Probe the version of the server (header X-Influxdb-Version of /ping).
+	 * On failure the previous version is kept. A server without the header is considered as pre 0.9.
+	 */
+	private void probeVersion() {
+		try {
+			HttpURLConnection con = (HttpURLConnection) pingUrl.openConnection();
+			con.setConnectTimeout(PROBE_TIMEOUT);
+			con.setReadTimeout(PROBE_TIMEOUT);
+			int responseCode = con.getResponseCode();
+			if (responseCode / 100 != 2) {
+				return;
+			}
+			con.getInputStream().close();
+			String version = con.getHeaderField("X-Influxdb-Version");
+			serverVersion = (version == null) ? new VersionNumber("0.8.0") : new VersionNumber(version);
+		} catch (Exception e) {
+			// keep the previous version
+		}
 	}
 
 	/**
@@ -123,33 +284,366 @@ public class InfluxdbHttp implements Influxdb {
 	public void appendSeries(String namePrefix, String name, String nameSuffix, String[] columns, Object[][] points) {
 		jsonBuilder.appendSeries(namePrefix, name, nameSuffix, columns, points);
 	}
+
 	public int sendRequest(boolean throwExc, boolean printJson) throws Exception {
-		String json = jsonBuilder.toJsonString();
+		return sendRequest(jsonBuilder, throwExc, printJson);
+	}
+
+	/**
+	 * Create a request encoded for the version of the server : line protocol or JSON, or
+	 * a new instance of the class of {@link #jsonBuilder} if it was replaced.
+	 */
+	@Override
+	public JsonBuilder newRequest() {
+		probeVersionIfNeeded();
+		JsonBuilder request = newBuilder(requestClass());
+		request.reset();
+		return request;
+	}
+
+	@Override
+	public JsonBuilder recycleRequest(JsonBuilder request) {
+		probeVersionIfNeeded();
+		if (request.getClass() != requestClass()) {
+			return newRequest();
+		}
+		request.reset();
+		return request;
+	}
+
+	/**
+	 * Returns the class of the requests : the class of jsonBuilder if it was replaced,
+	 * else the builder of the wire protocol of the server.
+	 */
+	private Class<? extends JsonBuilder> requestClass() {
+		Class<? extends JsonBuilder> custom = jsonBuilder.getClass();
+		if (custom != JsonBuilderDefault.class) {
+			return custom;
+		}
+		return isLineProtocol() ? LineProtocolBuilder.class : JsonBuilderDefault.class;
+	}
 
+	private static JsonBuilder newBuilder(Class<? extends JsonBuilder> type) {
+		if (type == JsonBuilderDefault.class) {
+			return new JsonBuilderDefault();
+		}
+		if (type == LineProtocolBuilder.class) {
+			return new LineProtocolBuilder();
+		}
+		try {
+			Constructor<? extends JsonBuilder> constructor = type.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return constructor.newInstance();
+		} catch (Exception e) {
+			throw new IllegalStateException("the requests are new instances of the class of jsonBuilder, " + type.getName() + " needs a constructor without argument", e);
+		}
+	}
+
+	@Override
+	public int sendRequest(JsonBuilder request, boolean throwExc, boolean printJson) throws Exception {
 		if (printJson || debugJson) {
 			System.err.println("----");
-			System.err.println(json);
+			System.err.println(request.toJsonString());
 			System.err.println("----");
 		}
 
-		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		probeVersionIfNeeded();
+		URL target = (request instanceof LineProtocolBuilder) ? writeUrl : url;
+		return sendChunks(target, request, chunkBounds(request), throwExc);
+	}
+
+	/**
+	 * Returns the index of the first series of every chunk, followed by the number of series.
+	 */
+	private int[] chunkBounds(JsonBuilder request) {
+		int nbSeries = request.seriesCount();
+		if (maxChunkSize < 0 && maxChunkSeries <= 0) {
+			return new int[]{ 0, nbSeries };
+		}
+		int[] bounds = new int[8];
+		int nbChunks = 0;
+		int size = 0;
+		int start = 0;
+		for (int i = 0; i < nbSeries; i++) {
+			// + 1 for the ',' or the '[' and ']'
+			int seriesSize = request.seriesSize(i) + 1;
+			boolean full = (maxChunkSize >= 0 && size + seriesSize > maxChunkSize)
+					|| (maxChunkSeries > 0 && i - start >= maxChunkSeries);
+			if (i == 0 || (full && i > start)) {
+				if (nbChunks + 2 > bounds.length) {
+					bounds = Arrays.copyOf(bounds, bounds.length * 2);
+				}
+				bounds[nbChunks++] = i;
+				start = i;
+				size = 0;
+			}
+			size += seriesSize;
+		}
+		bounds[nbChunks++] = nbSeries;
+		return Arrays.copyOf(bounds, nbChunks);
+	}
+
+	private int sendChunks(URL target, JsonBuilder request, int[] bounds, boolean throwExc) throws Exception {
+		int nbChunks = bounds.length - 1;
+		// the chunks are encoded on send (and again on retry) so only the chunks in flight hold buffers
+		List<Integer> pending = new ArrayList<Integer>(nbChunks);
+		for (int i = 0; i < nbChunks; i++) {
+			pending.add(i);
+		}
+		// the response code of the last failed chunk (-1 if it failed with an exception)
+		int failedCode = HttpURLConnection.HTTP_OK;
+		Exception failure = null;
+		// the chunks rejected by the server (4xx), not retried
+		int rejected = 0;
+		int retries = (nbChunks > 1) ? Math.max(0, chunkRetries) : 0;
+		for (int attempt = 0; attempt <= retries && !pending.isEmpty(); attempt++) {
+			List<Integer> failed = new ArrayList<Integer>();
+			List<Future<Integer>> results = submitChunks(target, request, bounds, pending);
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					int responseCode = results.get(i).get();
+					if (responseCode / 100 == 2) {
+						continue;
+					}
+					failedCode = responseCode;
+					if (isRetriable(responseCode)) {
+						failed.add(pending.get(i));
+					} else {
+						rejected++;
+					}
+				} catch (ExecutionException e) {
+					failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+					failedCode = -1;
+					failed.add(pending.get(i));
+				}
+			}
+			pending = failed;
+		}
+		int nbFailed = pending.size() + rejected;
+		if (nbFailed == 0) {
+			return HttpURLConnection.HTTP_OK;
+		}
+		if (throwExc) {
+			String msg = (nbChunks == 1) ? "Server returned HTTP response code: " + failedCode + " for URL: " + target
+					: nbFailed + " of " + nbChunks + " chunks failed to be sent to " + target + ", response code of a failed chunk: " + failedCode;
+			throw new IOException(msg, failure);
+		}
+		return failedCode;
+	}
+
+	/**
+	 * Returns true if a request which failed with responseCode can succeed if sent again
+	 * (server errors, timeouts and throttling, not the rejections of the payload).
+	 */
+	private static boolean isRetriable(int responseCode) {
+		return responseCode / 100 == 5 || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || responseCode == HTTP_TOO_MANY_REQUESTS;
+	}
+
+	private List<Future<Integer>> submitChunks(final URL target, final JsonBuilder request, final int[] bounds, List<Integer> chunks) throws InterruptedException {
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(chunks.size());
+		for (final int chunk : chunks) {
+			tasks.add(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return send(target, request, bounds[chunk], bounds[chunk + 1], false);
+				}
+			});
+		}
+		ExecutorService executor = (tasks.size() > 1) ? chunkExecutor() : null;
+		if (executor == null) {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>(tasks.size());
+			for (Callable<Integer> task : tasks) {
+				FutureTask<Integer> f = new FutureTask<Integer>(task);
+				f.run();
+				results.add(f);
+			}
+			return results;
+		}
+		return executor.invokeAll(tasks);
+	}
+
+	/**
+	 * Returns the executor for chunkParallelism (null if chunks are sent sequentially),
+	 * its threads are daemon and stop when idle.
+	 */
+	private synchronized ExecutorService chunkExecutor() {
+		if (chunkParallelism <= 1) {
+			return null;
+		}
+		if (chunkExecutor == null || chunkExecutor.getCorePoolSize() != chunkParallelism) {
+			if (chunkExecutor != null) {
+				chunkExecutor.shutdown();
+			}
+			final AtomicInteger threadId = new AtomicInteger();
+			chunkExecutor = new ThreadPoolExecutor(chunkParallelism, chunkParallelism, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "influxdb-http-" + threadId.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			chunkExecutor.allowCoreThreadTimeOut(true);
+		}
+		return chunkExecutor;
+	}
+
+	/**
+	 * Send the series [from, to[ of request, encoded through a slab of bufferPool (streamed to the
+	 * connection or to the compression) released after the send.
+	 */
+	private int send(URL target, JsonBuilder request, int from, int to, boolean throwExc) throws IOException {
+		long length = PooledPayload.encodedLength(request, from, to);
+		if (isCompressionEnabled((int) Math.min(length, Integer.MAX_VALUE))) {
+			GzipEncoder encoder = acquireGzipEncoder();
+			HttpURLConnection con;
+			try {
+				encoder.begin();
+				encode(request, from, to, encoder.input());
+				encoder.finish();
+				con = post(target, encoder.buffer(), encoder.length(), true);
+			} finally {
+				gzipEncoders.offer(encoder);
+			}
+			if (!isEncodingRejected(con)) {
+				return checkResponse(con, throwExc);
+			}
+			// the server doesn't understand gzip : stop compressing, and resend as is
+			compressionRejected = true;
+			for (GzipEncoder e = gzipEncoders.poll(); e != null; e = gzipEncoders.poll()) {
+				e.end();
+			}
+		}
+		return checkResponse(post(target, request, from, to, length), throwExc);
+	}
+
+	private void encode(JsonBuilder request, int from, int to, OutputStream out) throws IOException {
+		PooledPayload payload = new PooledPayload(bufferPool, out);
+		try {
+			request.appendTo(payload, from, to);
+			payload.finish();
+		} finally {
+			payload.release();
+		}
+	}
+
+	/**
+	 * Returns true if compression is configured, not rejected by the server and
+	 * the payload is large enough to benefit from it.
+	 */
+	public boolean isCompressionEnabled(int payloadSize) {
+		if (compressionRejected) {
+			return false;
+		}
+		if (compressionThreshold >= 0) {
+			return payloadSize >= compressionThreshold;
+		}
+		VersionNumber v = knownVersion();
+		return v != null && v.compareTo(VERSION_GZIP) >= 0 && payloadSize >= AUTO_COMPRESSION_THRESHOLD;
+	}
+
+	/**
+	 * Returns true if the response to a compressed payload is a rejection of the encoding :
+	 * a 415, or a 400 whose body is about the encoding (a 400 about the points would fail again
+	 * if the payload was resent as is).
+	 */
+	private static boolean isEncodingRejected(HttpURLConnection con) throws IOException {
+		int responseCode = con.getResponseCode();
+		if (responseCode == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+			return true;
+		}
+		if (responseCode != HttpURLConnection.HTTP_BAD_REQUEST) {
+			return false;
+		}
+		String body = errorBody(con).toLowerCase(Locale.ROOT);
+		return body.contains("gzip") || body.contains("encoding");
+	}
+
+	/**
+	 * Returns the beginning (at most 1KB) of the body of an error response, "" if none.
+	 */
+	private static String errorBody(HttpURLConnection con) {
+		InputStream in = con.getErrorStream();
+		if (in == null) {
+			return "";
+		}
+		try {
+			byte[] buf = new byte[1024];
+			int length = 0;
+			for (int n = in.read(buf); n > 0 && length < buf.length; n = in.read(buf, length, buf.length - length)) {
+				length += n;
+			}
+			return new String(buf, 0, length, UTF_8);
+		} catch (IOException e) {
+			return "";
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private GzipEncoder acquireGzipEncoder() {
+		GzipEncoder gzip = gzipEncoders.poll();
+		if (gzip == null) {
+			gzip = new GzipEncoder(compressionLevel);
+		} else if (gzip.level() != compressionLevel) {
+			gzip.setLevel(compressionLevel);
+		}
+		return gzip;
+	}
+
+	private HttpURLConnection post(URL target, byte[] body, int length, boolean gzipped) throws IOException {
+		HttpURLConnection con = open(target, length, gzipped);
+		OutputStream wr = con.getOutputStream();
+		wr.write(body, 0, length);
+		wr.flush();
+		wr.close();
+		return readResponse(con);
+	}
+
+	private HttpURLConnection post(URL target, JsonBuilder request, int from, int to, long length) throws IOException {
+		HttpURLConnection con = open(target, length, false);
+		OutputStream wr = con.getOutputStream();
+		encode(request, from, to, wr);
+		wr.flush();
+		wr.close();
+		return readResponse(con);
+	}
+
+	private HttpURLConnection open(URL target, long length, boolean gzipped) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) target.openConnection();
 
 		con.setRequestMethod("POST");
 		// con.setRequestProperty("User-Agent", "InfluxDB-jvm");
+		if (gzipped) {
+			con.setRequestProperty("Content-Encoding", "gzip");
+		}
 
 		// Send post request
 		con.setDoOutput(true);
-		OutputStream wr = con.getOutputStream();
-		wr.write(json.getBytes(UTF_8));
-		wr.flush();
-		wr.close();
+		con.setFixedLengthStreamingMode(length);
+		return con;
+	}
 
+	private HttpURLConnection readResponse(HttpURLConnection con) throws IOException {
 		int responseCode = con.getResponseCode();
-		if (responseCode == HttpURLConnection.HTTP_OK) {
+		if (responseCode / 100 == 2) {
 			// ignore Response content
 			con.getInputStream().close();
-		} else if (throwExc) {
-			throw new IOException("Server returned HTTP response code: " + responseCode + "for URL: " + url + " with content :'" + con.getResponseMessage() + "'");
+		} else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+			// maybe the server was upgraded (or downgraded), probe its version before the next request
+			nextVersionProbe = 0;
+		}
+		return con;
+	}
+
+	private int checkResponse(HttpURLConnection con, boolean throwExc) throws IOException {
+		int responseCode = con.getResponseCode();
+		if (responseCode / 100 != 2 && throwExc) {
+			throw new IOException("Server returned HTTP response code: " + responseCode + "for URL: " + con.getURL() + " with content :'" + con.getResponseMessage() + "'");
 		}
 		return responseCode;
 	}
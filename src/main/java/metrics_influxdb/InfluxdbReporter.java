@@ -12,10 +12,31 @@
 //	this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
 package metrics_influxdb;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,8 +48,10 @@ import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Sampling;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
@@ -63,6 +86,37 @@ public class InfluxdbReporter extends ScheduledReporter {
 		"time", "count"
 		, "one-minute", "five-minute", "fifteen-minute", "mean-rate"
 	};
+	private static String COLUMN_COUNT_RATE = "count-rate";
+	private static String[] COLUMNS_INTERVAL = {
+		"time", "value"
+	};
+	private static String[] COLUMNS_OTHER = {
+		"time", "count", "metrics"
+	};
+	private static String[] COLUMNS_SHED = {
+		"time", "high", "normal", "low"
+	};
+	private static final String REPORTER_NAME = "influxdb-reporter";
+	// the series of the updates of previous counts whose series is never shed
+	private static final int NOT_SHED = -1;
+	// the types of Counting metrics, index in ReportContext.otherXxx and TYPE_SUFFIXES
+	private static final int TYPE_COUNTER = 0;
+	private static final int TYPE_HISTOGRAM = 1;
+	private static final int TYPE_METER = 2;
+	private static final int TYPE_TIMER = 3;
+	private static final String[] TYPE_SUFFIXES = {
+		".count", ".histogram", ".meter", ".timer"
+	};
+
+	/**
+	 * The priority of the series of a metric when a report exceeds its budget, see
+	 * {@link Builder#sendBudget(long, long, TimeUnit)} : the series of the lowest priority are
+	 * removed first, the series of priority CRITICAL (and the series of the reporter itself) are
+	 * always sent.
+	 */
+	public enum Priority {
+		CRITICAL, HIGH, NORMAL, LOW
+	}
 
 	/**
 	 * Returns a new {@link Builder} for {@link InfluxdbReporter}.
@@ -88,6 +142,26 @@ public class InfluxdbReporter extends ScheduledReporter {
 		private TimeUnit durationUnit;
 		private MetricFilter filter;
 		private boolean skipIdleMetrics;
+		private boolean countDeltas;
+		private boolean countRates;
+		// the maximum period of the adaptive interval (in milliseconds), 0 if the interval is not adaptive
+		private long maxPeriodMillis;
+		private ReportScheduler scheduler;
+		private int maxMetrics;
+		private final List<Rollup.Rule> rollupRules = new ArrayList<Rollup.Rule>();
+		private ReportPhaseListener phaseListener;
+		private long slowMetricNanos;
+		private long slowSendNanos;
+		private final List<MetricFilter> routes = new ArrayList<MetricFilter>();
+		private final List<Influxdb> destinations = new ArrayList<Influxdb>();
+		private final List<MetricFilter> priorityFilters = new ArrayList<MetricFilter>();
+		private final List<Priority> priorities = new ArrayList<Priority>();
+		private boolean budgeted;
+		private long budgetBytes;
+		private long budgetNanos;
+		private DoubleFormat rateFormat;
+		private long durationResolutionNanos;
+		private DoubleFormat valueFormat;
 
 		private Builder(MetricRegistry registry) {
 			this.registry = registry;
@@ -164,6 +238,216 @@ public class InfluxdbReporter extends ScheduledReporter {
 			return this;
 		}
 
+		/**
+		 * Report the increment of the counts since the previous report, instead of the
+		 * cumulative counts ("count" of counters and meters, "run-count" of timers and histograms).
+		 * A metric reported for the first time, or whose count went backward (reset), is
+		 * considered as counted from zero. The increments of a request which fails to be sent, and
+		 * those of the series shed by {@link #sendBudget(long, long, TimeUnit)}, are included in the next report.
+		 *
+		 * @param countDeltas
+		 * @return {@code this}
+		 */
+		public Builder convertCountsToDeltas(boolean countDeltas) {
+			this.countDeltas = countDeltas;
+			return this;
+		}
+
+		/**
+		 * Add a "count-rate" column with the increment of the count since the previous report,
+		 * converted to the rate unit (null on the first report of a metric).
+		 *
+		 * @param countRates
+		 * @return {@code this}
+		 */
+		public Builder reportCountRates(boolean countRates) {
+			this.countRates = countRates;
+			return this;
+		}
+
+		/**
+		 * Back off the period of the reports (started with {@link InfluxdbReporter#start(long, TimeUnit)})
+		 * up to maxPeriod when the sends fail, are slow or overlap, and come back to the nominal
+		 * period when the server recovers. The current period (in milliseconds) is reported
+		 * as the series "influxdb-reporter.interval.value".
+		 *
+		 * @param maxPeriod the maximum period between 2 reports
+		 * @param unit the unit of maxPeriod
+		 * @return {@code this}
+		 */
+		public Builder adaptInterval(long maxPeriod, TimeUnit unit) {
+			this.maxPeriodMillis = Math.max(1, unit.toMillis(maxPeriod));
+			return this;
+		}
+
+		/**
+		 * Run the reports (started with {@link InfluxdbReporter#start(long, TimeUnit)}) on scheduler
+		 * (eg {@link ReportScheduler#shared()}), shared with other reporters, instead of a thread
+		 * dedicated to the reporter. A report is skipped while the previous one is still running.
+		 * Without virtual threads, the sends run on the bounded send pool of the scheduler (shared by
+		 * its reporters) and a report waits for them at most its period, see {@link ReportScheduler}.
+		 *
+		 * @param scheduler the scheduler of the reports
+		 * @return {@code this}
+		 */
+		public Builder scheduleOn(ReportScheduler scheduler) {
+			this.scheduler = scheduler;
+			return this;
+		}
+
+		/**
+		 * Report at most maxMetrics counters, histograms, meters and timers per report : the most
+		 * active ones (the highest increments of their counts over the recent reports). The others
+		 * are folded, per type, into the series "influxdb-reporter.other.(count|histogram|meter|timer)"
+		 * (the sum of their counts and the number of metrics folded), and their number is reported
+		 * as the series "influxdb-reporter.suppressed.value". Gauges are not limited.
+		 * The activity is tracked for 4 * maxMetrics metrics at most.
+		 *
+		 * @param maxMetrics the maximum number of Counting metrics reported individually
+		 * @return {@code this}
+		 */
+		public Builder limitCardinality(int maxMetrics) {
+			if (maxMetrics < 1) {
+				throw new IllegalArgumentException("maxMetrics should be positive : " + maxMetrics);
+			}
+			this.maxMetrics = maxMetrics;
+			return this;
+		}
+
+		/**
+		 * Report the merge of the counters (respectively histograms, meters, timers) whose names
+		 * match pattern as a counter (histogram, meter, timer) named rollupName, which can refer
+		 * to the groups of pattern, eg rollup(Pattern.compile("db\\.query\\.shard-\\d+\\.(.*)"), "db.query.all-shards.$1", false).
+		 * Counts and rates are summed, the quantiles are the ones of the union of the values if
+		 * the snapshots are uniform (eg of SlidingTimeWindowReservoir), else the max of the
+		 * quantiles (an upper bound). Rules are evaluated in the order they are added, the first
+		 * matching rule wins. Rollups are not limited by {@link #limitCardinality(int)}.
+		 *
+		 * @param pattern the names of the metrics to merge (the whole name must match)
+		 * @param rollupName the name of the merged metric
+		 * @param keepOriginals true to report the merged metrics too
+		 * @return {@code this}
+		 */
+		public Builder rollup(Pattern pattern, String rollupName, boolean keepOriginals) {
+			this.rollupRules.add(new Rollup.Rule(pattern, rollupName, keepOriginals));
+			return this;
+		}
+
+		/**
+		 * Notify listener (eg a {@link JfrPhaseListener}) of the phases of the reports slower than
+		 * their threshold : getSnapshot() of timers and histograms, getValue() of gauges and the
+		 * encoding of a metric (slower than metricThreshold), the send of a request (slower than
+		 * sendThreshold). The cost when nothing is slow is 2 reads of System.nanoTime() per phase.
+		 *
+		 * @param listener the listener of the slow phases
+		 * @param metricThreshold the minimum duration of the phases of a metric to notify
+		 * @param sendThreshold the minimum duration of the sends to notify
+		 * @param unit the unit of the thresholds
+		 * @return {@code this}
+		 */
+		public Builder recordSlowPhases(ReportPhaseListener listener, long metricThreshold, long sendThreshold, TimeUnit unit) {
+			this.phaseListener = listener;
+			this.slowMetricNanos = unit.toNanos(metricThreshold);
+			this.slowSendNanos = unit.toNanos(sendThreshold);
+			return this;
+		}
+
+		/**
+		 * Set the priority of the metrics matching filter (on their name and/or type), used to
+		 * shed series when a report exceeds the budget of {@link #sendBudget(long, long, TimeUnit)}.
+		 * Rules are evaluated in the order they are added, the first matching rule wins, the
+		 * metrics matching no rule are of priority NORMAL.
+		 *
+		 * @param filter the metrics of the priority
+		 * @param priority the priority
+		 * @return {@code this}
+		 */
+		public Builder priority(MetricFilter filter, Priority priority) {
+			this.priorityFilters.add(filter);
+			this.priorities.add(priority);
+			return this;
+		}
+
+		/**
+		 * Limit the size (in chars) of the request of every destination per report, and the
+		 * duration of a report : when a report is over budget, the series of the lowest
+		 * {@link Priority} (the last reported first) are not sent, the CRITICAL ones are always
+		 * sent. The time budget is enforced on the size of the requests, reduced when the sends
+		 * fail or are slower than the time left in the budget and increased back after every send
+		 * in time. The number of series shed per priority is reported in the series
+		 * "influxdb-reporter.shed.count", see also {@link InfluxdbReporter#getShedSeries(Priority)}.
+		 *
+		 * @param maxBytes the maximum size of a request, a negative value disables the limit
+		 * @param maxTime the maximum duration of a report (collect and send), 0 or a negative value disables the limit
+		 * @param unit the unit of maxTime
+		 * @return {@code this}
+		 */
+		public Builder sendBudget(long maxBytes, long maxTime, TimeUnit unit) {
+			this.budgeted = true;
+			this.budgetBytes = maxBytes;
+			this.budgetNanos = unit.toNanos(maxTime);
+			return this;
+		}
+
+		/**
+		 * Round the rates (one-minute, five-minute, fifteen-minute, mean-rate and count-rate) to
+		 * decimals digits after the decimal point, they are written in their shortest form
+		 * (eg "12.35" instead of "12.345678901234567" with 2 decimals).
+		 *
+		 * @param decimals the number of decimals of the rates
+		 * @return {@code this}
+		 */
+		public Builder roundRates(int decimals) {
+			this.rateFormat = DoubleFormat.decimals(decimals);
+			return this;
+		}
+
+		/**
+		 * Round the durations of the timers (min, max, mean, std-dev and percentiles, converted
+		 * to the unit of {@link #convertDurationsTo(TimeUnit)}) to the decimal digit of resolution,
+		 * eg roundDurations(1, TimeUnit.MICROSECONDS) writes 3 decimals of milliseconds.
+		 *
+		 * @param resolution the resolution of the durations
+		 * @param unit the unit of resolution
+		 * @return {@code this}
+		 */
+		public Builder roundDurations(long resolution, TimeUnit unit) {
+			this.durationResolutionNanos = unit.toNanos(resolution);
+			if (durationResolutionNanos <= 0) {
+				throw new IllegalArgumentException("resolution should be positive : " + resolution + " " + unit);
+			}
+			return this;
+		}
+
+		/**
+		 * Round the other decimal values (mean, std-dev and percentiles of the histograms,
+		 * Double and Float values of the gauges) to significantDigits significant digits.
+		 *
+		 * @param significantDigits the number of significant digits of the values (1 to 15)
+		 * @return {@code this}
+		 */
+		public Builder roundValues(int significantDigits) {
+			this.valueFormat = DoubleFormat.significantDigits(significantDigits);
+			return this;
+		}
+
+		/**
+		 * Send the metrics matching the filter (on name and/or type of metric) to destination
+		 * (eg a client of another database) instead of the client given to build(...).
+		 * Routes are evaluated in the order they are added, the first matching route wins.
+		 * The metrics are read once per report, the request of every destination is sent
+		 * independently, in parallel.
+		 *
+		 * @param filter the metrics to route
+		 * @param destination the client to send the metrics to
+		 * @return {@code this}
+		 */
+		public Builder routeTo(MetricFilter filter, Influxdb destination) {
+			this.routes.add(filter);
+			this.destinations.add(destination);
+			return this;
+		}
+
 		/**
 		 * Builds a {@link InfluxdbReporter} with the given properties, sending
 		 * metrics using the given {@link Influxdb} client.
@@ -179,68 +463,127 @@ public class InfluxdbReporter extends ScheduledReporter {
 					rateUnit,
 					durationUnit,
 					filter,
-					skipIdleMetrics);
+					skipIdleMetrics,
+					countDeltas,
+					countRates,
+					// the stateful helpers are created per reporter
+					(maxPeriodMillis == 0) ? null : new AdaptiveInterval(maxPeriodMillis, TimeUnit.MILLISECONDS),
+					scheduler,
+					(maxMetrics == 0) ? null : new CardinalityGuard(maxMetrics, maxMetrics * 4),
+					rollupRules.toArray(new Rollup.Rule[rollupRules.size()]),
+					phaseListener,
+					slowMetricNanos,
+					slowSendNanos,
+					!budgeted ? null : new LoadShedder(budgetBytes, budgetNanos,
+							priorityFilters.toArray(new MetricFilter[priorityFilters.size()]),
+							priorities.toArray(new Priority[priorities.size()]),
+							routes.size() + 1),
+					rateFormat,
+					(durationResolutionNanos == 0) ? null : DoubleFormat.decimals(
+							// the decimals of durationUnit at least as precise as the resolution
+							(int) Math.ceil(Math.log10((double) durationUnit.toNanos(1) / durationResolutionNanos) - 1e-9)),
+					valueFormat,
+					routes.toArray(new MetricFilter[routes.size()]),
+					destinations.toArray(new Influxdb[destinations.size()]));
 		}
 	}
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(InfluxdbReporter.class);
 
+	private final MetricRegistry registry;
+	private final MetricFilter filter;
 	private final Influxdb influxdb;
+	// destinations[0] is influxdb, destinations[i + 1] receives the metrics matching routes[i]
+	private final Influxdb[] destinations;
+	private final MetricFilter[] routes;
+	private ThreadPoolExecutor sendExecutor;
 	private final Clock clock;
 	private final String prefix;
 	private final boolean skipIdleMetrics;
-	private final Map<String, Long> previousValues;
-
-	// Optimization : use pointsXxx to reduce object creation, by reuse as arg of
-	// Influxdb.appendSeries(...)
-	private final Object[][] pointsTimer = { {
-		0l,
-		0,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0l
-	} };
-	private final Object[][] pointsHistogram = { {
-		0l,
-		0,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d,
-		0l
-	} };
-	private final Object[][] pointsCounter = { {
-		0l,
-		0l
-	} };
-	private final Object[][] pointsGauge = { {
-		0l,
-		null
-	} };
-	private final Object[][] pointsMeter = { {
-		0l,
-		0,
-		0.0d,
-		0.0d,
-		0.0d,
-		0.0d
-	} };
+	private final boolean countDeltas;
+	private final boolean countRates;
+	// used (under its lock) only if trackCounts
+	private final PreviousCounts previousCounts;
+	private final boolean trackCounts;
+	// guarded by previousCounts
+	private final CardinalityGuard cardinalityGuard;
+	private final Rollup.Rule[] rollupRules;
+	// the rollup of the metric names (the rules are not evaluated again at every report),
+	// cleared when it outgrows the registry (metrics removed)
+	private final ConcurrentHashMap<String, Rollup.Match> rollupMatches = new ConcurrentHashMap<String, Rollup.Match>();
+	private final ReportPhaseListener phaseListener;
+	private final long slowMetricNanos;
+	private final long slowSendNanos;
+	private final LoadShedder loadShedder;
+	// the rounding of the rates, durations and other decimal values, if set
+	private final DoubleFormat rateFormat;
+	private final DoubleFormat durationFormat;
+	private final DoubleFormat valueFormat;
+	private final String[] columnsTimer;
+	private final String[] columnsHistogram;
+	private final String[] columnsCount;
+	private final String[] columnsMeter;
+	private final ConcurrentLinkedQueue<ReportContext> contexts = new ConcurrentLinkedQueue<ReportContext>();
+	private final AdaptiveInterval adaptiveInterval;
+	// runs the reports when the interval is adaptive, else ScheduledReporter's executor is used
+	private ScheduledExecutorService adaptiveExecutor;
+	// runs the reports instead of the executors above if set
+	private final ReportScheduler scheduler;
+	// the next (or periodic) report on scheduler, written under the lock of this
+	private volatile boolean scheduled;
+	private ScheduledFuture<?> scheduledReport;
+	// the period of the reports on scheduler, the maximum time a report waits for its sends
+	private volatile long periodNanos;
+	// per destination, true while a send runs in the background of the reports on scheduler
+	private final AtomicBoolean[] sending;
+
+	/**
+	 * The mutable state of a report cycle : the request to send (per destination) and the points.
+	 * Contexts are pooled, every concurrent call of report(...) uses its own.
+	 */
+	private final class ReportContext {
+		final JsonBuilder[] requests = new JsonBuilder[destinations.length];
+		{
+			for (int i = 0; i < destinations.length; i++) {
+				requests[i] = destinations[i].newRequest();
+			}
+		}
+
+		// Optimization : use pointsXxx to reduce object creation, by reuse as arg of
+		// JsonBuilder.appendSeries(...)
+		final Object[][] pointsTimer = new Object[1][columnsTimer.length];
+		final Object[][] pointsHistogram = new Object[1][columnsHistogram.length];
+		final Object[][] pointsCounter = new Object[1][columnsCount.length];
+		final Object[][] pointsGauge = new Object[1][COLUMNS_GAUGE.length];
+		final Object[][] pointsMeter = new Object[1][columnsMeter.length];
+		final Object[][] pointsInterval = new Object[1][COLUMNS_INTERVAL.length];
+		final Object[][] pointsOther = new Object[1][COLUMNS_OTHER.length];
+		final Object[][] pointsShed = new Object[1][COLUMNS_SHED.length];
+
+		// the metrics not admitted by the cardinalityGuard, per type
+		final long[] otherCounts = new long[TYPE_SUFFIXES.length];
+		final int[] otherMetrics = new int[TYPE_SUFFIXES.length];
+
+		// the rollups of the metrics, by name and suffix
+		final Map<String, Rollup> rollups = new TreeMap<String, Rollup>();
+
+		// the start of the report (System.nanoTime())
+		long startNanos;
+		// the report and its sends running in the background : the last one gives the context back
+		final AtomicInteger references = new AtomicInteger();
+		// per destination, the ordinal of the Priority of every series of the request (if loadShedder),
+		// 0 (CRITICAL) for the series of the reporter
+		final byte[][] seriesPriorities = new byte[destinations.length][];
+		// the number of series shed, per Priority
+		final long[] shedCounts = new long[Priority.values().length];
+		// per destination, the updates of previousCounts to roll back if the request is not sent (if countDeltas or skipIdleMetrics)
+		final PreviousCounts.Updates[] countUpdates = (countDeltas || skipIdleMetrics) ? new PreviousCounts.Updates[destinations.length] : null;
+		{
+			for (int i = 0; countUpdates != null && i < destinations.length; i++) {
+				countUpdates[i] = new PreviousCounts.Updates();
+			}
+		}
+	}
 
 	private InfluxdbReporter(MetricRegistry registry,
 			Influxdb influxdb,
@@ -249,15 +592,232 @@ public class InfluxdbReporter extends ScheduledReporter {
 			TimeUnit rateUnit,
 			TimeUnit durationUnit,
 			MetricFilter filter,
-			boolean skipIdleMetrics) {
-		super(registry, "influxdb-reporter", filter, rateUnit, durationUnit);
+			boolean skipIdleMetrics,
+			boolean countDeltas,
+			boolean countRates,
+			AdaptiveInterval adaptiveInterval,
+			ReportScheduler scheduler,
+			CardinalityGuard cardinalityGuard,
+			Rollup.Rule[] rollupRules,
+			ReportPhaseListener phaseListener,
+			long slowMetricNanos,
+			long slowSendNanos,
+			LoadShedder loadShedder,
+			DoubleFormat rateFormat,
+			DoubleFormat durationFormat,
+			DoubleFormat valueFormat,
+			MetricFilter[] routes,
+			Influxdb[] routeDestinations) {
+		super(registry, REPORTER_NAME, filter, rateUnit, durationUnit);
+		this.registry = registry;
+		this.filter = filter;
 		this.influxdb = influxdb;
+		this.routes = routes;
+		this.destinations = new Influxdb[routeDestinations.length + 1];
+		this.destinations[0] = influxdb;
+		System.arraycopy(routeDestinations, 0, this.destinations, 1, routeDestinations.length);
 		this.clock = clock;
 		this.prefix = (prefix == null) ? "" : (prefix.trim() + ".");
 		this.skipIdleMetrics = skipIdleMetrics;
-		this.previousValues = new TreeMap<String, Long>();
+		this.countDeltas = countDeltas;
+		this.countRates = countRates;
+		this.previousCounts = new PreviousCounts();
+		this.trackCounts = skipIdleMetrics || countDeltas || countRates || cardinalityGuard != null;
+		this.cardinalityGuard = cardinalityGuard;
+		this.rollupRules = rollupRules;
+		this.phaseListener = phaseListener;
+		this.slowMetricNanos = slowMetricNanos;
+		this.slowSendNanos = slowSendNanos;
+		this.loadShedder = loadShedder;
+		this.rateFormat = rateFormat;
+		this.durationFormat = durationFormat;
+		this.valueFormat = valueFormat;
+		this.columnsTimer = withCountRate(COLUMNS_TIMER);
+		this.columnsHistogram = withCountRate(COLUMNS_HISTOGRAM);
+		this.columnsCount = withCountRate(COLUMNS_COUNT);
+		this.columnsMeter = withCountRate(COLUMNS_METER);
+		this.adaptiveInterval = adaptiveInterval;
+		this.scheduler = scheduler;
+		this.sending = new AtomicBoolean[destinations.length];
+		for (int i = 0; i < destinations.length; i++) {
+			this.sending[i] = new AtomicBoolean();
+		}
+	}
+
+	private String[] withCountRate(String[] columns) {
+		if (!countRates) {
+			return columns;
+		}
+		String[] back = new String[columns.length + 1];
+		System.arraycopy(columns, 0, back, 0, columns.length);
+		back[columns.length] = COLUMN_COUNT_RATE;
+		return back;
+	}
+
+	/**
+	 * Starts the reporter polling at the given period, the period is adapted to
+	 * the health of the server if {@link Builder#adaptInterval(long, TimeUnit)} is set, the reports
+	 * run on the scheduler of {@link Builder#scheduleOn(ReportScheduler)} if set.
+	 *
+	 * @param period the amount of time between polls
+	 * @param unit   the unit for {@code period}
+	 */
+	@Override
+	public void start(long period, TimeUnit unit) {
+		// so the version of the http servers is known before the first report
+		for (Influxdb destination : destinations) {
+			if (destination instanceof InfluxdbHttp) {
+				((InfluxdbHttp) destination).probeVersionIfNeeded();
+			}
+		}
+		if (scheduler != null) {
+			startOnScheduler(period, unit);
+			return;
+		}
+		if (adaptiveInterval == null) {
+			super.start(period, unit);
+			return;
+		}
+		synchronized (this) {
+			if (adaptiveExecutor != null) {
+				throw new IllegalStateException("reporter already started");
+			}
+			adaptiveInterval.setNominal(period, unit);
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, REPORTER_NAME);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// so stop() doesn't wait for the next report
+			executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			adaptiveExecutor = executor;
+			scheduleNextReport(adaptiveExecutor, adaptiveInterval.current());
+		}
+	}
+
+	private void scheduleNextReport(final ScheduledExecutorService executor, long delayMillis) {
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					long start = System.currentTimeMillis();
+					try {
+						runReport();
+					} finally {
+						scheduleNextReport(executor, Math.max(0, start + adaptiveInterval.current() - System.currentTimeMillis()));
+					}
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// stopped
+		}
+	}
+
+	private synchronized void startOnScheduler(long period, TimeUnit unit) {
+		if (scheduled) {
+			throw new IllegalStateException("reporter already started");
+		}
+		scheduled = true;
+		periodNanos = unit.toNanos(period);
+		if (adaptiveInterval == null) {
+			scheduledReport = scheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					runReport();
+				}
+			}, period, unit);
+			return;
+		}
+		adaptiveInterval.setNominal(period, unit);
+		scheduleNextReportOnScheduler(adaptiveInterval.current());
+	}
+
+	private synchronized void scheduleNextReportOnScheduler(long delayMillis) {
+		if (!scheduled) {
+			return;
+		}
+		try {
+			scheduledReport = scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					long start = System.currentTimeMillis();
+					try {
+						runReport();
+					} finally {
+						scheduleNextReportOnScheduler(Math.max(0, start + adaptiveInterval.current() - System.currentTimeMillis()));
+					}
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// scheduler stopped
+			scheduled = false;
+		}
+	}
+
+	private void runReport() {
+		if (scheduler != null && !scheduled) {
+			// stopped while waiting for a thread of the scheduler
+			return;
+		}
+		try {
+			report();
+		} catch (RuntimeException e) {
+			LOGGER.warn("RuntimeException thrown from {}#report. Exception was suppressed.", InfluxdbReporter.class.getSimpleName(), e);
+		}
+	}
+
+	@Override
+	public void stop() {
+		synchronized (this) {
+			scheduled = false;
+			if (scheduledReport != null) {
+				// a running report is not interrupted
+				scheduledReport.cancel(false);
+				scheduledReport = null;
+			}
+			if (adaptiveExecutor != null) {
+				adaptiveExecutor.shutdown();
+				try {
+					adaptiveExecutor.awaitTermination(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				adaptiveExecutor = null;
+			}
+		}
+		synchronized (this) {
+			if (sendExecutor != null) {
+				sendExecutor.shutdown();
+				sendExecutor = null;
+			}
+		}
+		super.stop();
+	}
+
+	/**
+	 * Report the current values of all metrics in the registry.
+	 *
+	 * Unlike {@link ScheduledReporter#report()}, it doesn't lock the reporter : report
+	 * cycles are isolated, so a report on demand (eg on shutdown) doesn't wait for a slow
+	 * send of the scheduled one.
+	 */
+	@Override
+	public void report() {
+		report(registry.getGauges(filter),
+				registry.getCounters(filter),
+				registry.getHistograms(filter),
+				registry.getMeters(filter),
+				registry.getTimers(filter));
 	}
 
+	/**
+	 * Can be called concurrently, only the reading of the counts is serialized when
+	 * the previous counts are needed (skipIdleMetrics, countDeltas, countRates, limitCardinality), not the send.
+	 * The previous counts are not tracked otherwise.
+	 */
 	@Override
 	@SuppressWarnings("rawtypes")
 	public void report(SortedMap<String, Gauge> gauges,
@@ -265,117 +825,757 @@ public class InfluxdbReporter extends ScheduledReporter {
 			SortedMap<String, Histogram> histograms,
 			SortedMap<String, Meter> meters,
 			SortedMap<String, Timer> timers) {
-		final long timestamp = clock.getTime();
+		final ReportContext ctx = acquireContext();
+		ctx.startNanos = System.nanoTime();
 
-		// oh it'd be lovely to use Java 7 here
 		try {
-			influxdb.resetRequest();
-
-			for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
-				reportGauge(entry.getKey(), entry.getValue(), timestamp);
+			final long timestamp;
+			if (trackCounts) {
+				synchronized (previousCounts) {
+					// read under the lock so the times of the previous counts never go backward
+					timestamp = clock.getTime();
+					previousCounts.beginCycle();
+					if (cardinalityGuard != null) {
+						cardinalityGuard.beginCycle();
+					}
+					appendMetrics(ctx, gauges, counters, histograms, meters, timers, timestamp);
+					if (cardinalityGuard != null) {
+						reportOthers(ctx, timestamp);
+						cardinalityGuard.endCycle();
+					}
+					previousCounts.endCycle();
+				}
+			} else {
+				timestamp = clock.getTime();
+				appendMetrics(ctx, gauges, counters, histograms, meters, timers, timestamp);
 			}
 
-			for (Map.Entry<String, Counter> entry : counters.entrySet()) {
-				reportCounter(entry.getKey(), entry.getValue(), timestamp);
+			if (adaptiveInterval != null) {
+				reportInterval(ctx, timestamp);
 			}
 
-			for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
-				reportHistogram(entry.getKey(), entry.getValue(), timestamp);
+			if (loadShedder != null) {
+				shed(ctx, timestamp);
 			}
 
-			for (Map.Entry<String, Meter> entry : meters.entrySet()) {
-				reportMeter(entry.getKey(), entry.getValue(), timestamp);
+			sendAll(ctx);
+		} catch (Exception e) {
+			LOGGER.warn("Unable to report to InfluxDB. Discarding data.", e);
+			for (int d = 0; d < destinations.length; d++) {
+				rollbackCounts(ctx, d);
 			}
+		} finally {
+			releaseContext(ctx);
+		}
+	}
 
-			for (Map.Entry<String, Timer> entry : timers.entrySet()) {
-				reportTimer(entry.getKey(), entry.getValue(), timestamp);
+	/**
+	 * Send the request of every destination with series data, the first on the current thread,
+	 * the others in parallel. A failure of a destination doesn't prevent the send to the others.
+	 * The sends of a report are a single send for the adaptive interval (they overlap by design).
+	 *
+	 * On a scheduler of platform threads, all the sends run on the send pool of the scheduler
+	 * (shared by its reporters) and the report waits for them at most a period : a destination
+	 * whose previous send is still queued or running is not sent (its counts are rolled back),
+	 * so a hung server holds one send thread, not the threads of the reports.
+	 */
+	private void sendAll(final ReportContext ctx) {
+		final boolean background = scheduler != null && !scheduler.isVirtual();
+		List<Future<Boolean>> others = null;
+		// the destinations whose send was rejected by the executor (shut down by a concurrent stop)
+		List<Integer> rejected = null;
+		int first = -1;
+		boolean any = false;
+		boolean success = true;
+		for (int i = 0; i < destinations.length; i++) {
+			if (!ctx.requests[i].hasSeriesData()) {
+				continue;
+			}
+			any = true;
+			if (first < 0 && !background) {
+				first = i;
+				continue;
+			}
+			final int d = i;
+			if (background && !sending[d].compareAndSet(false, true)) {
+				LOGGER.warn("Previous send to {} still running, the report is not sent to it.", destinations[d].getClass().getSimpleName());
+				rollbackCounts(ctx, d);
+				success = false;
+				continue;
+			}
+			if (others == null) {
+				others = new ArrayList<Future<Boolean>>(destinations.length);
 			}
+			ctx.references.incrementAndGet();
+			try {
+				others.add(sendExecutor().submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						try {
+							return sendAndLog(ctx, d);
+						} finally {
+							if (background) {
+								sending[d].set(false);
+							}
+							releaseContext(ctx);
+						}
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				ctx.references.decrementAndGet();
+				sending[d].set(false);
+				// sent on the current thread, after the first
+				if (rejected == null) {
+					rejected = new ArrayList<Integer>(destinations.length);
+				}
+				rejected.add(d);
+			}
+		}
+		if (!any) {
+			return;
+		}
+		long start = System.nanoTime();
+		boolean overlapped = (adaptiveInterval != null) && adaptiveInterval.sendStarted();
+		try {
+			if (first >= 0) {
+				success &= sendAndLog(ctx, first);
+			}
+			if (rejected != null) {
+				for (int d : rejected) {
+					success &= sendAndLog(ctx, d);
+				}
+			}
+			if (others != null) {
+				success &= await(others, background ? sendDeadline(ctx) : 0);
+			}
+		} finally {
+			if (adaptiveInterval != null) {
+				adaptiveInterval.sendEnded(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), success, overlapped);
+			}
+		}
+	}
 
-			if (influxdb.hasSeriesData()) {
-				influxdb.sendRequest(true, false);
+	/**
+	 * Wait for the sends until deadline (System.nanoTime(), 0 to wait until they end), returns
+	 * false if one of them failed or is still running.
+	 */
+	private static boolean await(List<Future<Boolean>> sends, long deadline) {
+		boolean success = true;
+		for (Future<Boolean> f : sends) {
+			try {
+				if (deadline == 0) {
+					success &= f.get();
+				} else {
+					success &= f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				}
+			} catch (ExecutionException e) {
+				success = false;
+				LOGGER.warn("Unable to report to InfluxDB. Discarding data.", e.getCause());
+			} catch (TimeoutException e) {
+				// goes on in the background, its failure is logged by the send thread
+				success = false;
+				LOGGER.warn("Send to InfluxDB still running after the period of the reporter.");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
 			}
+		}
+		return success;
+	}
+
+	/**
+	 * Returns the time (System.nanoTime()) until which the report ctx waits for its sends running
+	 * in the background : the end of its period, 0 (no limit) if the reporter is not started.
+	 */
+	private long sendDeadline(ReportContext ctx) {
+		long period = (adaptiveInterval != null && periodNanos > 0) ? TimeUnit.MILLISECONDS.toNanos(adaptiveInterval.current()) : periodNanos;
+		if (period <= 0) {
+			return 0;
+		}
+		long deadline = ctx.startNanos + period;
+		return (deadline == 0) ? 1 : deadline;
+	}
+
+	/**
+	 * Returns false if the send to destination d failed (and is logged).
+	 */
+	private boolean sendAndLog(ReportContext ctx, int d) {
+		try {
+			send(ctx, d);
+			return true;
 		} catch (Exception e) {
 			LOGGER.warn("Unable to report to InfluxDB. Discarding data.", e);
+			return false;
 		}
 	}
 
-	private void reportTimer(String name, Timer timer, long timestamp) {
-		if (canSkipMetric(name, timer)) {
-			return;
+	/**
+	 * Returns the executor of the sends of the report : the one of the scheduler if set, else
+	 * the send threads of the reporter (one per destination, stopped when idle).
+	 */
+	private synchronized ExecutorService sendExecutor() {
+		if (scheduler != null) {
+			return scheduler.sendExecutor();
 		}
-		final Snapshot snapshot = timer.getSnapshot();
-		Object[] p = pointsTimer[0];
-		p[0] = influxdb.convertTimestamp(timestamp);
-		p[1] = snapshot.size();
-		p[2] = convertDuration(snapshot.getMin());
-		p[3] = convertDuration(snapshot.getMax());
-		p[4] = convertDuration(snapshot.getMean());
-		p[5] = convertDuration(snapshot.getStdDev());
-		p[6] = convertDuration(snapshot.getMedian());
-		p[7] = convertDuration(snapshot.get75thPercentile());
-		p[8] = convertDuration(snapshot.get95thPercentile());
-		p[9] = convertDuration(snapshot.get99thPercentile());
-		p[10] = convertDuration(snapshot.get999thPercentile());
-		p[11] = convertRate(timer.getOneMinuteRate());
-		p[12] = convertRate(timer.getFiveMinuteRate());
-		p[13] = convertRate(timer.getFifteenMinuteRate());
-		p[14] = convertRate(timer.getMeanRate());
-		p[15] = timer.getCount();
-		assert (p.length == COLUMNS_TIMER.length);
-		influxdb.appendSeries(prefix, name, ".timer", COLUMNS_TIMER, pointsTimer);
-	}
-
-	private void reportHistogram(String name, Histogram histogram, long timestamp) {
-		if (canSkipMetric(name, histogram)) {
+		if (sendExecutor == null) {
+			sendExecutor = new ThreadPoolExecutor(destinations.length, destinations.length, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, REPORTER_NAME + "-send");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			sendExecutor.allowCoreThreadTimeOut(true);
+		}
+		return sendExecutor;
+	}
+
+	private void send(ReportContext ctx, int d) throws Exception {
+		final JsonBuilder request = ctx.requests[d];
+		if (loadShedder == null) {
+			sendRequest(ctx, d);
 			return;
 		}
-		final Snapshot snapshot = histogram.getSnapshot();
-		Object[] p = pointsHistogram[0];
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			sendRequest(ctx, d);
+			success = true;
+		} finally {
+			loadShedder.sent(d, sizeOf(request), System.nanoTime() - start, start - ctx.startNanos, success);
+		}
+	}
+
+	/**
+	 * Returns the size (in chars) of the series of request.
+	 */
+	private static long sizeOf(JsonBuilder request) {
+		long size = 0;
+		for (int i = 0; i < request.seriesCount(); i++) {
+			size += request.seriesSize(i);
+		}
+		return size;
+	}
+
+	/**
+	 * Send the request of destination d, the updates of the previous counts of its metrics are
+	 * rolled back if the send fails.
+	 */
+	private void sendRequest(ReportContext ctx, int d) throws Exception {
+		final Influxdb destination = destinations[d];
+		final JsonBuilder request = ctx.requests[d];
+		long start = (phaseListener == null) ? 0 : System.nanoTime();
+		try {
+			destination.sendRequest(request, true, false);
+		} catch (Exception e) {
+			rollbackCounts(ctx, d);
+			throw e;
+		} finally {
+			long elapsed = (phaseListener == null) ? 0 : System.nanoTime() - start;
+			if (phaseListener != null && elapsed >= slowSendNanos) {
+				phaseListener.slowPhase(ReportPhaseListener.Phase.SEND, null, destination.getClass().getSimpleName(), sizeOf(request), elapsed);
+			}
+		}
+	}
+
+	private Snapshot snapshotOf(String name, Sampling sampling, String type) {
+		if (phaseListener == null) {
+			return sampling.getSnapshot();
+		}
+		long start = System.nanoTime();
+		Snapshot snapshot = sampling.getSnapshot();
+		long elapsed = System.nanoTime() - start;
+		if (elapsed >= slowMetricNanos) {
+			phaseListener.slowPhase(ReportPhaseListener.Phase.SNAPSHOT, name, type, 0, elapsed);
+		}
+		return snapshot;
+	}
+
+	private Object valueOf(String name, Gauge<?> gauge) {
+		if (phaseListener == null) {
+			return gauge.getValue();
+		}
+		long start = System.nanoTime();
+		Object value = gauge.getValue();
+		long elapsed = System.nanoTime() - start;
+		if (elapsed >= slowMetricNanos) {
+			phaseListener.slowPhase(ReportPhaseListener.Phase.GAUGE_VALUE, name, "value", 0, elapsed);
+		}
+		return value;
+	}
+
+	/**
+	 * Append the series of a metric to the request of destination d.
+	 *
+	 * @param priority the priority of the metric (null if there is no loadShedder)
+	 */
+	private void appendSeries(ReportContext ctx, int d, Priority priority, String name, String nameSuffix, String[] columns, Object[][] points) {
+		final JsonBuilder request = ctx.requests[d];
+		if (phaseListener == null) {
+			request.appendSeries(prefix, name, nameSuffix, columns, points);
+		} else {
+			int seriesCount = request.seriesCount();
+			long start = System.nanoTime();
+			request.appendSeries(prefix, name, nameSuffix, columns, points);
+			long elapsed = System.nanoTime() - start;
+			if (elapsed >= slowMetricNanos) {
+				// the series can be dropped (eg no field in line protocol)
+				long size = (request.seriesCount() > seriesCount) ? request.seriesSize(seriesCount) : 0;
+				phaseListener.slowPhase(ReportPhaseListener.Phase.ENCODE, name, nameSuffix.substring(1), size, elapsed);
+			}
+		}
+		if (loadShedder != null && priority != Priority.CRITICAL) {
+			int index = request.seriesCount() - 1;
+			byte[] seriesPriorities = ctx.seriesPriorities[d];
+			if (seriesPriorities == null || index >= seriesPriorities.length) {
+				seriesPriorities = (seriesPriorities == null) ? new byte[Math.max(64, index * 2)] : Arrays.copyOf(seriesPriorities, index * 2);
+				ctx.seriesPriorities[d] = seriesPriorities;
+			}
+			seriesPriorities[index] = (byte) priority.ordinal();
+		}
+	}
+
+	/**
+	 * Returns the priority of the metric, null if there is no loadShedder.
+	 */
+	private Priority priorityOf(String name, Metric metric) {
+		return (loadShedder == null) ? null : loadShedder.priorityOf(name, metric);
+	}
+
+	/**
+	 * Remove the series over the budget of the requests, and report the number of series removed.
+	 * The previous counts of the metrics of the series removed are rolled back, so their increments
+	 * are included in the next report.
+	 */
+	private void shed(ReportContext ctx, long timestamp) {
+		long elapsed = System.nanoTime() - ctx.startNanos;
+		for (int d = 0; d < destinations.length; d++) {
+			if (ctx.seriesPriorities[d] == null) {
+				continue;
+			}
+			BitSet removed = loadShedder.shed(ctx.requests[d], ctx.seriesPriorities[d], loadShedder.budget(d, elapsed), ctx.shedCounts);
+			if (removed != null && ctx.countUpdates != null) {
+				synchronized (previousCounts) {
+					previousCounts.rollback(ctx.countUpdates[d], removed);
+				}
+			}
+		}
+		Object[] p = ctx.pointsShed[0];
 		p[0] = influxdb.convertTimestamp(timestamp);
-		p[1] = snapshot.size();
-		p[2] = snapshot.getMin();
-		p[3] = snapshot.getMax();
-		p[4] = snapshot.getMean();
-		p[5] = snapshot.getStdDev();
-		p[6] = snapshot.getMedian();
-		p[7] = snapshot.get75thPercentile();
-		p[8] = snapshot.get95thPercentile();
-		p[9] = snapshot.get99thPercentile();
-		p[10] = snapshot.get999thPercentile();
-		p[11] = histogram.getCount();
-		assert (p.length == COLUMNS_HISTOGRAM.length);
-		influxdb.appendSeries(prefix, name, ".histogram", COLUMNS_HISTOGRAM, pointsHistogram);
-	}
-
-	private void reportCounter(String name, Counter counter, long timestamp) {
-		Object[] p = pointsCounter[0];
+		p[1] = ctx.shedCounts[Priority.HIGH.ordinal()];
+		p[2] = ctx.shedCounts[Priority.NORMAL.ordinal()];
+		p[3] = ctx.shedCounts[Priority.LOW.ordinal()];
+		assert (p.length == COLUMNS_SHED.length);
+		ctx.requests[0].appendSeries(prefix, REPORTER_NAME + ".shed", ".count", COLUMNS_SHED, ctx.pointsShed);
+		Arrays.fill(ctx.shedCounts, 0);
+	}
+
+	/**
+	 * Returns the number of series of priority not sent because a report was over its budget,
+	 * since the creation of the reporter (0 if {@link Builder#sendBudget(long, long, TimeUnit)} is not set).
+	 */
+	public long getShedSeries(Priority priority) {
+		return (loadShedder == null) ? 0 : loadShedder.shedSeries(priority);
+	}
+
+	/**
+	 * Returns the index in destinations of the destination of the metric.
+	 */
+	private int destinationOf(String name, Metric metric) {
+		for (int i = 0; i < routes.length; i++) {
+			if (routes[i].matches(name, metric)) {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+
+	private void reportInterval(ReportContext ctx, long timestamp) {
+		Object[] p = ctx.pointsInterval[0];
 		p[0] = influxdb.convertTimestamp(timestamp);
-		p[1] = counter.getCount();
-		assert (p.length == COLUMNS_COUNT.length);
-		influxdb.appendSeries(prefix, name, ".count", COLUMNS_COUNT, pointsCounter);
+		p[1] = adaptiveInterval.current();
+		assert (p.length == COLUMNS_INTERVAL.length);
+		ctx.requests[0].appendSeries(prefix, REPORTER_NAME + ".interval", ".value", COLUMNS_INTERVAL, ctx.pointsInterval);
+	}
+
+	/**
+	 * Returns true if the metric is admitted by the cardinalityGuard (if any), else
+	 * fold its count into the "other" series of its type.
+	 */
+	private boolean admit(ReportContext ctx, int type, String name, long delta, long count) {
+		if (cardinalityGuard == null || cardinalityGuard.admit(name, delta)) {
+			return true;
+		}
+		ctx.otherCounts[type] += count;
+		ctx.otherMetrics[type]++;
+		return false;
 	}
 
-	private void reportGauge(String name, Gauge<?> gauge, long timestamp) {
-		Object[] p = pointsGauge[0];
+	private void reportOthers(ReportContext ctx, long timestamp) {
+		for (int type = 0; type < TYPE_SUFFIXES.length; type++) {
+			if (ctx.otherMetrics[type] == 0) {
+				continue;
+			}
+			Object[] p = ctx.pointsOther[0];
+			p[0] = influxdb.convertTimestamp(timestamp);
+			p[1] = ctx.otherCounts[type];
+			p[2] = ctx.otherMetrics[type];
+			assert (p.length == COLUMNS_OTHER.length);
+			ctx.requests[0].appendSeries(prefix, REPORTER_NAME + ".other", TYPE_SUFFIXES[type], COLUMNS_OTHER, ctx.pointsOther);
+			ctx.otherCounts[type] = 0;
+			ctx.otherMetrics[type] = 0;
+		}
+		Object[] p = ctx.pointsGauge[0];
 		p[0] = influxdb.convertTimestamp(timestamp);
-		p[1] = gauge.getValue();
+		p[1] = cardinalityGuard.suppressed();
+		ctx.requests[0].appendSeries(prefix, REPORTER_NAME + ".suppressed", ".value", COLUMNS_GAUGE, ctx.pointsGauge);
+	}
+
+	private ReportContext acquireContext() {
+		ReportContext ctx = contexts.poll();
+		if (ctx == null) {
+			ctx = new ReportContext();
+		} else {
+			for (int i = 0; i < destinations.length; i++) {
+				ctx.requests[i] = destinations[i].recycleRequest(ctx.requests[i]);
+			}
+			// left by a failed report
+			ctx.rollups.clear();
+			Arrays.fill(ctx.otherCounts, 0);
+			Arrays.fill(ctx.otherMetrics, 0);
+			Arrays.fill(ctx.shedCounts, 0);
+			for (byte[] seriesPriorities : ctx.seriesPriorities) {
+				if (seriesPriorities != null) {
+					Arrays.fill(seriesPriorities, (byte) 0);
+				}
+			}
+			for (int i = 0; ctx.countUpdates != null && i < destinations.length; i++) {
+				ctx.countUpdates[i].clear();
+			}
+		}
+		ctx.references.set(1);
+		return ctx;
+	}
+
+	/**
+	 * Give ctx back to the pool once the report and all its sends are done.
+	 */
+	private void releaseContext(ReportContext ctx) {
+		if (ctx.references.decrementAndGet() == 0) {
+			contexts.offer(ctx);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void appendMetrics(ReportContext ctx,
+			SortedMap<String, Gauge> gauges,
+			SortedMap<String, Counter> counters,
+			SortedMap<String, Histogram> histograms,
+			SortedMap<String, Meter> meters,
+			SortedMap<String, Timer> timers,
+			long timestamp) {
+		if (rollupMatches.size() > 2 * (counters.size() + histograms.size() + meters.size() + timers.size()) + 16) {
+			// forget the removed metrics
+			rollupMatches.clear();
+		}
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			reportGauge(ctx, entry.getKey(), entry.getValue(), timestamp);
+		}
+
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			reportCounter(ctx, entry.getKey(), entry.getValue(), timestamp);
+		}
+
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			reportHistogram(ctx, entry.getKey(), entry.getValue(), timestamp);
+		}
+
+		for (Map.Entry<String, Meter> entry : meters.entrySet()) {
+			reportMeter(ctx, entry.getKey(), entry.getValue(), timestamp);
+		}
+
+		for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+			reportTimer(ctx, entry.getKey(), entry.getValue(), timestamp);
+		}
+
+		if (!ctx.rollups.isEmpty()) {
+			reportRollups(ctx, timestamp);
+		}
+	}
+
+	/**
+	 * Returns the rollup of the metric (created at its first metric), or null if the metric
+	 * doesn't match a rollup rule.
+	 */
+	private Rollup rollupOf(ReportContext ctx, int type, String name, Metric metric) {
+		if (rollupRules.length == 0) {
+			return null;
+		}
+		Rollup.Match match = rollupMatches.get(name);
+		if (match == null) {
+			match = Rollup.Match.of(rollupRules, name, TYPE_SUFFIXES);
+			rollupMatches.put(name, match);
+		}
+		if (match == Rollup.Match.NONE) {
+			return null;
+		}
+		Rollup rollup = ctx.rollups.get(match.keys[type]);
+		if (rollup == null) {
+			rollup = new Rollup(ctx.rollups.size(), match.name, type, destinationOf(name, metric), priorityOf(name, metric), match.rule.keepOriginals);
+			ctx.rollups.put(match.keys[type], rollup);
+		}
+		return rollup;
+	}
+
+	private void reportRollups(ReportContext ctx, long timestamp) {
+		for (Rollup rollup : ctx.rollups.values()) {
+			if (skipIdleMetrics && !rollup.active) {
+				continue;
+			}
+			final long time = destinations[rollup.destination].convertTimestamp(timestamp);
+			if (ctx.countUpdates != null) {
+				ctx.countUpdates[rollup.destination].bind(rollupTag(rollup), ctx.requests[rollup.destination].seriesCount());
+			}
+			Object[] p;
+			switch (rollup.type) {
+			case TYPE_COUNTER:
+				p = ctx.pointsCounter[0];
+				p[0] = time;
+				p[1] = rollup.count;
+				if (countRates) {
+					p[p.length - 1] = roundRate(rollup.countRate);
+				}
+				appendSeries(ctx, rollup.destination, rollup.priority, rollup.name, TYPE_SUFFIXES[rollup.type], columnsCount, ctx.pointsCounter);
+				break;
+			case TYPE_HISTOGRAM:
+				p = ctx.pointsHistogram[0];
+				p[0] = time;
+				putSnapshot(p, rollup.getSnapshot(), false);
+				p[11] = rollup.count;
+				if (countRates) {
+					p[p.length - 1] = roundRate(rollup.countRate);
+				}
+				appendSeries(ctx, rollup.destination, rollup.priority, rollup.name, TYPE_SUFFIXES[rollup.type], columnsHistogram, ctx.pointsHistogram);
+				break;
+			case TYPE_METER:
+				p = ctx.pointsMeter[0];
+				p[0] = time;
+				p[1] = rollup.count;
+				p[2] = rateOf(rollup.oneMinuteRate);
+				p[3] = rateOf(rollup.fiveMinuteRate);
+				p[4] = rateOf(rollup.fifteenMinuteRate);
+				p[5] = rateOf(rollup.meanRate);
+				if (countRates) {
+					p[p.length - 1] = roundRate(rollup.countRate);
+				}
+				appendSeries(ctx, rollup.destination, rollup.priority, rollup.name, TYPE_SUFFIXES[rollup.type], columnsMeter, ctx.pointsMeter);
+				break;
+			case TYPE_TIMER:
+				p = ctx.pointsTimer[0];
+				p[0] = time;
+				putSnapshot(p, rollup.getSnapshot(), true);
+				p[11] = rateOf(rollup.oneMinuteRate);
+				p[12] = rateOf(rollup.fiveMinuteRate);
+				p[13] = rateOf(rollup.fifteenMinuteRate);
+				p[14] = rateOf(rollup.meanRate);
+				p[15] = rollup.count;
+				if (countRates) {
+					p[p.length - 1] = roundRate(rollup.countRate);
+				}
+				appendSeries(ctx, rollup.destination, rollup.priority, rollup.name, TYPE_SUFFIXES[rollup.type], columnsTimer, ctx.pointsTimer);
+				break;
+			}
+		}
+		ctx.rollups.clear();
+	}
+
+	/**
+	 * Set p[1] to p[10] : the size, min, max, mean, std-dev and percentiles of the snapshot.
+	 */
+	private void putSnapshot(Object[] p, Snapshot snapshot, boolean durations) {
+		p[1] = snapshot.size();
+		if (durations) {
+			p[2] = durationOf(snapshot.getMin());
+			p[3] = durationOf(snapshot.getMax());
+			p[4] = durationOf(snapshot.getMean());
+			p[5] = durationOf(snapshot.getStdDev());
+			p[6] = durationOf(snapshot.getMedian());
+			p[7] = durationOf(snapshot.get75thPercentile());
+			p[8] = durationOf(snapshot.get95thPercentile());
+			p[9] = durationOf(snapshot.get99thPercentile());
+			p[10] = durationOf(snapshot.get999thPercentile());
+		} else {
+			p[2] = snapshot.getMin();
+			p[3] = snapshot.getMax();
+			p[4] = roundValue(snapshot.getMean());
+			p[5] = roundValue(snapshot.getStdDev());
+			p[6] = roundValue(snapshot.getMedian());
+			p[7] = roundValue(snapshot.get75thPercentile());
+			p[8] = roundValue(snapshot.get95thPercentile());
+			p[9] = roundValue(snapshot.get99thPercentile());
+			p[10] = roundValue(snapshot.get999thPercentile());
+		}
+	}
+
+	private void reportTimer(ReportContext ctx, String name, Timer timer, long timestamp) {
+		final long count = timer.getCount();
+		final int slot = trackCounts ? previousCounts.slot(name, timer) : -1;
+		final long delta = trackCounts ? calculateDelta(name, slot, count, true) : 0;
+		Snapshot snapshot = null;
+		final Rollup rollup = rollupOf(ctx, TYPE_TIMER, name, timer);
+		if (rollup != null) {
+			snapshot = snapshotOf(name, timer, "timer");
+			rollup.addCount(countDeltas ? delta : count, countRate(slot, delta, timestamp), !canSkipMetric(slot, delta));
+			rollup.addRates(timer);
+			rollup.addSnapshot(snapshot);
+			if (!rollup.keepOriginals) {
+				updateCount(ctx, rollup.destination, slot, count, timestamp, rollupTag(rollup));
+				return;
+			}
+		}
+		if (canSkipMetric(slot, delta)) {
+			return;
+		}
+		if (!admit(ctx, TYPE_TIMER, name, delta, countDeltas ? delta : count)) {
+			// folded into the series of the others, never shed
+			updateCount(ctx, 0, slot, count, timestamp, NOT_SHED);
+			return;
+		}
+		final int d = destinationOf(name, timer);
+		if (snapshot == null) {
+			snapshot = snapshotOf(name, timer, "timer");
+		}
+		Object[] p = ctx.pointsTimer[0];
+		p[0] = destinations[d].convertTimestamp(timestamp);
+		putSnapshot(p, snapshot, true);
+		p[11] = rateOf(timer.getOneMinuteRate());
+		p[12] = rateOf(timer.getFiveMinuteRate());
+		p[13] = rateOf(timer.getFifteenMinuteRate());
+		p[14] = rateOf(timer.getMeanRate());
+		p[15] = countDeltas ? delta : count;
+		putCountRate(p, slot, delta, timestamp);
+		updateCount(ctx, d, slot, count, timestamp);
+		assert (p.length == columnsTimer.length);
+		appendSeries(ctx, d, priorityOf(name, timer), name, ".timer", columnsTimer, ctx.pointsTimer);
+	}
+
+	private void reportHistogram(ReportContext ctx, String name, Histogram histogram, long timestamp) {
+		final long count = histogram.getCount();
+		final int slot = trackCounts ? previousCounts.slot(name, histogram) : -1;
+		final long delta = trackCounts ? calculateDelta(name, slot, count, true) : 0;
+		Snapshot snapshot = null;
+		final Rollup rollup = rollupOf(ctx, TYPE_HISTOGRAM, name, histogram);
+		if (rollup != null) {
+			snapshot = snapshotOf(name, histogram, "histogram");
+			rollup.addCount(countDeltas ? delta : count, countRate(slot, delta, timestamp), !canSkipMetric(slot, delta));
+			rollup.addSnapshot(snapshot);
+			if (!rollup.keepOriginals) {
+				updateCount(ctx, rollup.destination, slot, count, timestamp, rollupTag(rollup));
+				return;
+			}
+		}
+		if (canSkipMetric(slot, delta)) {
+			return;
+		}
+		if (!admit(ctx, TYPE_HISTOGRAM, name, delta, countDeltas ? delta : count)) {
+			// folded into the series of the others, never shed
+			updateCount(ctx, 0, slot, count, timestamp, NOT_SHED);
+			return;
+		}
+		final int d = destinationOf(name, histogram);
+		if (snapshot == null) {
+			snapshot = snapshotOf(name, histogram, "histogram");
+		}
+		Object[] p = ctx.pointsHistogram[0];
+		p[0] = destinations[d].convertTimestamp(timestamp);
+		putSnapshot(p, snapshot, false);
+		p[11] = countDeltas ? delta : count;
+		putCountRate(p, slot, delta, timestamp);
+		updateCount(ctx, d, slot, count, timestamp);
+		assert (p.length == columnsHistogram.length);
+		appendSeries(ctx, d, priorityOf(name, histogram), name, ".histogram", columnsHistogram, ctx.pointsHistogram);
+	}
+
+	private void reportCounter(ReportContext ctx, String name, Counter counter, long timestamp) {
+		final long count = counter.getCount();
+		final boolean tracked = countDeltas || countRates || cardinalityGuard != null;
+		int slot = -1;
+		long delta = 0;
+		if (tracked) {
+			// a Counter can be decremented, so a lower count is not a reset
+			slot = previousCounts.slot(name, counter);
+			delta = calculateDelta(name, slot, count, false);
+		}
+		final Rollup rollup = rollupOf(ctx, TYPE_COUNTER, name, counter);
+		if (rollup != null) {
+			rollup.addCount(countDeltas ? delta : count, tracked ? countRate(slot, delta, timestamp) : null, true);
+			if (!rollup.keepOriginals) {
+				if (tracked) {
+					updateCount(ctx, rollup.destination, slot, count, timestamp, rollupTag(rollup));
+				}
+				return;
+			}
+		}
+		if (tracked && !admit(ctx, TYPE_COUNTER, name, delta, countDeltas ? delta : count)) {
+			// folded into the series of the others, never shed
+			updateCount(ctx, 0, slot, count, timestamp, NOT_SHED);
+			return;
+		}
+		final int d = destinationOf(name, counter);
+		Object[] p = ctx.pointsCounter[0];
+		p[0] = destinations[d].convertTimestamp(timestamp);
+		p[1] = countDeltas ? delta : count;
+		if (tracked) {
+			putCountRate(p, slot, delta, timestamp);
+			updateCount(ctx, d, slot, count, timestamp);
+		}
+		assert (p.length == columnsCount.length);
+		appendSeries(ctx, d, priorityOf(name, counter), name, ".count", columnsCount, ctx.pointsCounter);
+	}
+
+	private void reportGauge(ReportContext ctx, String name, Gauge<?> gauge, long timestamp) {
+		final int d = destinationOf(name, gauge);
+		Object[] p = ctx.pointsGauge[0];
+		p[0] = destinations[d].convertTimestamp(timestamp);
+		p[1] = roundGaugeValue(valueOf(name, gauge));
 		assert (p.length == COLUMNS_GAUGE.length);
-		influxdb.appendSeries(prefix, name, ".value", COLUMNS_GAUGE, pointsGauge);
+		appendSeries(ctx, d, priorityOf(name, gauge), name, ".value", COLUMNS_GAUGE, ctx.pointsGauge);
 	}
 
-	private void reportMeter(String name, Metered meter, long timestamp) {
-		if (canSkipMetric(name, meter)) {
+	private void reportMeter(ReportContext ctx, String name, Metered meter, long timestamp) {
+		final long count = meter.getCount();
+		final int slot = trackCounts ? previousCounts.slot(name, meter) : -1;
+		final long delta = trackCounts ? calculateDelta(name, slot, count, true) : 0;
+		final Rollup rollup = rollupOf(ctx, TYPE_METER, name, meter);
+		if (rollup != null) {
+			rollup.addCount(countDeltas ? delta : count, countRate(slot, delta, timestamp), !canSkipMetric(slot, delta));
+			rollup.addRates(meter);
+			if (!rollup.keepOriginals) {
+				updateCount(ctx, rollup.destination, slot, count, timestamp, rollupTag(rollup));
+				return;
+			}
+		}
+		if (canSkipMetric(slot, delta)) {
 			return;
 		}
-		Object[] p = pointsMeter[0];
-		p[0] = influxdb.convertTimestamp(timestamp);
-		p[1] = meter.getCount();
-		p[2] = convertRate(meter.getOneMinuteRate());
-		p[3] = convertRate(meter.getFiveMinuteRate());
-		p[4] = convertRate(meter.getFifteenMinuteRate());
-		p[5] = convertRate(meter.getMeanRate());
-		assert (p.length == COLUMNS_METER.length);
-		influxdb.appendSeries(prefix, name, ".meter", COLUMNS_METER, pointsMeter);
+		if (!admit(ctx, TYPE_METER, name, delta, countDeltas ? delta : count)) {
+			// folded into the series of the others, never shed
+			updateCount(ctx, 0, slot, count, timestamp, NOT_SHED);
+			return;
+		}
+		final int d = destinationOf(name, meter);
+		Object[] p = ctx.pointsMeter[0];
+		p[0] = destinations[d].convertTimestamp(timestamp);
+		p[1] = countDeltas ? delta : count;
+		p[2] = rateOf(meter.getOneMinuteRate());
+		p[3] = rateOf(meter.getFiveMinuteRate());
+		p[4] = rateOf(meter.getFifteenMinuteRate());
+		p[5] = rateOf(meter.getMeanRate());
+		putCountRate(p, slot, delta, timestamp);
+		updateCount(ctx, d, slot, count, timestamp);
+		assert (p.length == columnsMeter.length);
+		appendSeries(ctx, d, priorityOf(name, meter), name, ".meter", columnsMeter, ctx.pointsMeter);
 	}
 
 	// private String format(Object o) {
@@ -408,31 +1608,137 @@ public class InfluxdbReporter extends ScheduledReporter {
 	/**
 	 * Returns true if this metric is idle and should be skipped.
 	 *
-	 * @param name
-	 * @param counting
+	 * @param slot the slot of the metric in previousCounts
+	 * @param delta the increment of the count since the previous report
 	 * @return true if the metric should be skipped
 	 */
-	private boolean canSkipMetric(String name, Counting counting) {
-		boolean isIdle = calculateDelta(name, counting.getCount()) == 0L;
-		if (skipIdleMetrics && !isIdle) {
-			previousValues.put(name, counting.getCount());
-		}
-		return skipIdleMetrics && isIdle;
+	private boolean canSkipMetric(int slot, long delta) {
+		return skipIdleMetrics && previousCounts.isKnown(slot) && delta == 0L;
 	}
 
 	/**
 	 * Calculate the delta from the current value to the previous reported value.
+	 * An unknown metric or, if monotonic, a count lower than the previous one (reset)
+	 * is considered as counted from zero.
 	 */
-	private long calculateDelta(String name, long count) {
-		Long previous = previousValues.get(name);
-		if (previous == null) {
-			// unknown metric, force non-zero delta to report
-			return -1L;
+	private long calculateDelta(String name, int slot, long count, boolean monotonic) {
+		if (!previousCounts.isKnown(slot)) {
+			return count;
 		}
-		if (count < previous) {
-			LOGGER.warn("Saw a non-monotonically increasing value for metric '{}'", name);
-			return 0L;
+		long previous = previousCounts.count(slot);
+		if (monotonic && count < previous) {
+			LOGGER.warn("Saw a non-monotonically increasing value for metric '{}', assume it was reset", name);
+			return count;
 		}
 		return count - previous;
 	}
+
+	/**
+	 * Update the previous count of the metric at slot, to be rolled back if the request of
+	 * destination d is not sent (when the deltas or the idle metrics depend on it), or if the
+	 * series of the metric, the next one appended to the request, is shed.
+	 */
+	private void updateCount(ReportContext ctx, int d, int slot, long count, long timestamp) {
+		updateCount(ctx, d, slot, count, timestamp, ctx.requests[d].seriesCount());
+	}
+
+	/**
+	 * Update the previous count of the metric at slot, as {@link #updateCount(ReportContext, int, int, long, long)},
+	 * for the series of index series (see {@link #rollupTag(Rollup)}, NOT_SHED if the series is never shed).
+	 */
+	private void updateCount(ReportContext ctx, int d, int slot, long count, long timestamp, int series) {
+		if (slot < 0) {
+			// not tracked
+			return;
+		}
+		if (ctx.countUpdates != null) {
+			ctx.countUpdates[d].add(previousCounts, slot, count, timestamp, series);
+		}
+		previousCounts.update(slot, count, timestamp);
+	}
+
+	/**
+	 * Returns the tag of the updates of the metrics of rollup, bound to its series when it is appended.
+	 */
+	private static int rollupTag(Rollup rollup) {
+		return -2 - rollup.index;
+	}
+
+	/**
+	 * Undo the updates of the previous counts of the metrics of destination d, so the
+	 * increments not sent are included in the next report.
+	 */
+	private void rollbackCounts(ReportContext ctx, int d) {
+		if (ctx.countUpdates == null) {
+			return;
+		}
+		synchronized (previousCounts) {
+			previousCounts.rollback(ctx.countUpdates[d]);
+		}
+	}
+
+	/**
+	 * Set the last value of p to the rate of delta since the previous report, if count rates are enabled.
+	 */
+	private void putCountRate(Object[] p, int slot, long delta, long timestamp) {
+		if (!countRates) {
+			return;
+		}
+		p[p.length - 1] = roundRate(countRate(slot, delta, timestamp));
+	}
+
+	/**
+	 * Returns the rate of delta since the previous report, null if count rates are disabled or
+	 * the metric is reported for the first time.
+	 */
+	private Double countRate(int slot, long delta, long timestamp) {
+		if (!countRates || !previousCounts.isKnown(slot)) {
+			return null;
+		}
+		long elapsed = timestamp - previousCounts.time(slot);
+		return (elapsed > 0) ? convertRate(delta * 1000.0 / elapsed) : null;
+	}
+
+	/**
+	 * Returns the rate converted to the rate unit, rounded if {@link Builder#roundRates(int)}.
+	 */
+	private Object rateOf(double rate) {
+		double converted = convertRate(rate);
+		if (rateFormat == null) {
+			return converted;
+		}
+		return rateFormat.round(converted);
+	}
+
+	private Object roundRate(Double rate) {
+		if (rateFormat == null || rate == null) {
+			return rate;
+		}
+		return rateFormat.round(rate);
+	}
+
+	/**
+	 * Returns the duration converted to the duration unit, rounded if {@link Builder#roundDurations(long, TimeUnit)}.
+	 */
+	private Object durationOf(double duration) {
+		double converted = convertDuration(duration);
+		if (durationFormat == null) {
+			return converted;
+		}
+		return durationFormat.round(converted);
+	}
+
+	private Object roundValue(double value) {
+		if (valueFormat == null) {
+			return value;
+		}
+		return valueFormat.round(value);
+	}
+
+	private Object roundGaugeValue(Object value) {
+		if (valueFormat != null && (value instanceof Double || value instanceof Float)) {
+			return valueFormat.round(((Number) value).doubleValue());
+		}
+		return value;
+	}
 }
@@ -0,0 +1,291 @@
+package metrics_influxdb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A client to stream data in line protocol to a server (eg a relay of InfluxDB) over a
+ * long-lived TCP connection.
+ *
+ * The requests are appended to a write buffer, flushed with non-blocking writes. When the
+ * socket buffer is full, sendRequest waits (up to writeTimeout) for the socket to drain,
+ * the data not yet written stays buffered for the next request; a request that doesn't fit
+ * in the remaining space of the buffer (maxBufferSize) is rejected, the connection is kept.
+ * On failure the connection is closed and opened again (at most every reconnectDelay) by the
+ * next request, the partially written line (if any) is dropped to keep the stream valid.
+ * The host is resolved on every connection (so a change of the DNS record is followed).
+ * The sends are serialized by a ReentrantLock (not a monitor, which would pin the carrier
+ * of a virtual thread during the blocking writes).
+ */
+public class InfluxdbTcp implements Influxdb {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final String host;
+	private final int port;
+	private final TimeUnit timePrecision;
+	/** true => to print the lines on System.err */
+	public boolean debugJson = false;
+	/** The maximum time (in milliseconds) to connect */
+	public long connectTimeout = 5000;
+	/** The maximum time (in milliseconds) to wait for the socket to accept more data */
+	public long writeTimeout = 5000;
+	/** The minimum time (in milliseconds) between 2 attempts to connect */
+	public long reconnectDelay = 1000;
+	/** The maximum size of the data buffered (not yet written to the socket) */
+	public int maxBufferSize = 16 * 1024 * 1024;
+
+	private final JsonBuilder lineBuilder = newRequest();
+	// guards the connection and the buffer
+	private final ReentrantLock lock = new ReentrantLock();
+	private SocketChannel channel;
+	private Selector selector;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+	// true if the first byte of buffer is not the start of a line (the start of the line was written)
+	private boolean midLine = false;
+	private long nextConnect = 0;
+
+	/**
+	 * Constructor with timestamps sent in nanoseconds (the default precision of the line protocol).
+	 */
+	public InfluxdbTcp(String host, int port) {
+		this(host, port, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param timePrecision The precision of the timestamps expected by the server
+	 */
+	public InfluxdbTcp(String host, int port, TimeUnit timePrecision) {
+		this.host = host;
+		this.port = port;
+		this.timePrecision = timePrecision;
+		// the Buffer methods, not the covariant overrides of ByteBuffer (JDK 9+), to run on JDK 7 and 8
+		((Buffer) buffer).flip();
+	}
+
+	@Override
+	public void resetRequest() {
+		lineBuilder.reset();
+	}
+
+	@Override
+	public boolean hasSeriesData() {
+		return lineBuilder.hasSeriesData();
+	}
+
+	@Override
+	public long convertTimestamp(long timestamp) {
+		return timePrecision.convert(timestamp, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void appendSeries(String namePrefix, String name, String nameSuffix, String[] columns, Object[][] points) {
+		lineBuilder.appendSeries(namePrefix, name, nameSuffix, columns, points);
+	}
+
+	@Override
+	public int sendRequest(boolean throwExc, boolean printJson) throws Exception {
+		return sendRequest(lineBuilder, throwExc, printJson);
+	}
+
+	@Override
+	public JsonBuilder newRequest() {
+		JsonBuilder request = new LineProtocolBuilder();
+		request.reset();
+		return request;
+	}
+
+	@Override
+	public JsonBuilder recycleRequest(JsonBuilder request) {
+		request.reset();
+		return request;
+	}
+
+	/**
+	 * Returns the number of bytes buffered, not yet written to the socket.
+	 */
+	public int pendingBytes() {
+		lock.lock();
+		try {
+			return buffer.remaining();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Buffer the request and write as much as possible to the connection.
+	 *
+	 * @return the number of bytes still buffered
+	 */
+	@Override
+	public int sendRequest(JsonBuilder request, boolean throwExc, boolean printJson) throws Exception {
+		String lines = request.toJsonString();
+		if (printJson || debugJson) {
+			System.err.println("----");
+			System.err.print(lines);
+			System.err.println("----");
+		}
+		byte[] data = lines.getBytes(UTF_8);
+		lock.lock();
+		try {
+			return send(data, throwExc);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int send(byte[] data, boolean throwExc) throws IOException {
+		// a full buffer is not a failure of the connection : the request is rejected, what is buffered is still written
+		IOException rejected = null;
+		if (buffer.remaining() + data.length > maxBufferSize) {
+			rejected = new IOException("write buffer full (" + buffer.remaining() + " bytes pending), request of " + data.length + " bytes rejected");
+		} else {
+			append(data);
+		}
+		try {
+			flush();
+		} catch (IOException e) {
+			disconnect();
+			if (throwExc) {
+				throw e;
+			}
+		}
+		if (rejected != null && throwExc) {
+			throw rejected;
+		}
+		return buffer.remaining();
+	}
+
+	/**
+	 * Close the connection, the buffered data are dropped.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			disconnect();
+			((Buffer) buffer).clear();
+			((Buffer) buffer).flip();
+			midLine = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void append(byte[] data) {
+		if (buffer.capacity() - buffer.limit() < data.length) {
+			buffer.compact();
+			if (buffer.remaining() < data.length) {
+				ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + data.length));
+				((Buffer) buffer).flip();
+				bigger.put(buffer);
+				buffer = bigger;
+			}
+			((Buffer) buffer).flip();
+		}
+		int position = buffer.position();
+		((Buffer) buffer).position(buffer.limit());
+		((Buffer) buffer).limit(buffer.limit() + data.length);
+		buffer.put(data);
+		((Buffer) buffer).position(position);
+	}
+
+	/**
+	 * Write the buffer, waiting for the socket to accept more data up to writeTimeout.
+	 */
+	private void flush() throws IOException {
+		long deadline = System.currentTimeMillis() + writeTimeout;
+		while (buffer.hasRemaining()) {
+			connect();
+			int written = channel.write(buffer);
+			if (written > 0) {
+				midLine = buffer.get(buffer.position() - 1) != '\n';
+				continue;
+			}
+			// backpressure : the socket buffer is full
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				return;
+			}
+			channel.register(selector, SelectionKey.OP_WRITE);
+			selector.select(wait);
+			selector.selectedKeys().clear();
+		}
+	}
+
+	private void connect() throws IOException {
+		if (channel != null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now < nextConnect) {
+			throw new IOException("not connected to " + host + ":" + port + ", next attempt in " + (nextConnect - now) + "ms");
+		}
+		nextConnect = now + reconnectDelay;
+		dropPartialLine();
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		if (address.isUnresolved()) {
+			throw new IOException("unknown host " + host);
+		}
+		SocketChannel c = SocketChannel.open();
+		try {
+			c.configureBlocking(false);
+			c.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+			Selector s = Selector.open();
+			try {
+				if (!c.connect(address)) {
+					c.register(s, SelectionKey.OP_CONNECT);
+					s.select(connectTimeout);
+					if (!c.finishConnect()) {
+						throw new IOException("timeout while connecting to " + address);
+					}
+				}
+			} catch (IOException e) {
+				s.close();
+				throw e;
+			}
+			channel = c;
+			selector = s;
+		} catch (IOException e) {
+			c.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Skip the end of a line whose start was written on a previous connection.
+	 */
+	private void dropPartialLine() {
+		if (!midLine) {
+			return;
+		}
+		while (buffer.hasRemaining()) {
+			if (buffer.get() == '\n') {
+				break;
+			}
+		}
+		midLine = false;
+	}
+
+	private void disconnect() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		channel = null;
+		selector = null;
+	}
+}
@@ -1,15 +1,24 @@
 package metrics_influxdb;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 
+/**
+ * A client to send data to a InfluxDB server via UDP protocol, every series is sent in its own datagram.
+ * The datagrams are sent from the same local port for the life of the client (so a receiver,
+ * eg {@link InfluxdbAgent}, can tell the senders apart), until an error or {@link #close()}.
+ */
 public class InfluxdbUdp implements Influxdb {
+	// the series appended by appendSeries(...), one per builder
 	protected final ArrayList<JsonBuilder> jsonBuilders;
 	private final String host;
 	private final int port;
 	public boolean debugJson = false;
+	private DatagramChannel channel;
 
 	public InfluxdbUdp(String host, int port) {
 		jsonBuilders = new ArrayList<>();
@@ -35,22 +44,42 @@ public class InfluxdbUdp implements Influxdb {
 
 	@Override
 	public void appendSeries(String namePrefix, String name, String nameSuffix, String[] columns, Object[][] points) {
-		JsonBuilderDefault jsonBuilder = new JsonBuilderDefault();
-		jsonBuilder.reset();
+		JsonBuilder jsonBuilder = newRequest();
 		jsonBuilder.appendSeries(namePrefix, name, nameSuffix, columns, points);
 		jsonBuilders.add(jsonBuilder);
 	}
 
 	@Override
 	public int sendRequest(boolean throwExc, boolean printJson) throws Exception {
+		for (JsonBuilder builder : jsonBuilders) {
+			sendRequest(builder, throwExc, printJson);
+		}
+		return 0;
+	}
+
+	@Override
+	public JsonBuilder newRequest() {
+		JsonBuilder request = new JsonBuilderDefault();
+		request.reset();
+		return request;
+	}
+
+	@Override
+	public JsonBuilder recycleRequest(JsonBuilder request) {
+		request.reset();
+		return request;
+	}
+
+	@Override
+	public int sendRequest(JsonBuilder request, boolean throwExc, boolean printJson) throws Exception {
 		DatagramChannel channel = null;
 
 		try {
-			channel = DatagramChannel.open();
+			channel = channel();
 			InetSocketAddress socketAddress = new InetSocketAddress(host, port);
 
-			for (JsonBuilder builder : jsonBuilders) {
-				String json = builder.toJsonString();
+			for (int i = 0; i < request.seriesCount(); i++) {
+				String json = request.toJsonString(i, i + 1);
 
 				if (printJson || debugJson) {
 					System.out.println(json);
@@ -58,18 +87,50 @@ public class InfluxdbUdp implements Influxdb {
 
 				ByteBuffer buffer = ByteBuffer.wrap(json.getBytes());
 				channel.send(buffer, socketAddress);
-				buffer.clear();
+				((Buffer) buffer).clear();
 			}
 		} catch (Exception e) {
+			if (channel != null) {
+				close(channel);
+			}
 			if (throwExc) {
 				throw e;
 			}
-		} finally {
-			if (channel != null) {
-				channel.close();
-			}
 		}
 
 		return 0;
 	}
+
+	/**
+	 * Close the channel, the next request opens a new one.
+	 */
+	public void close() {
+		DatagramChannel c;
+		synchronized (this) {
+			c = channel;
+		}
+		if (c != null) {
+			close(c);
+		}
+	}
+
+	private synchronized DatagramChannel channel() throws IOException {
+		if (channel == null) {
+			channel = DatagramChannel.open();
+		}
+		return channel;
+	}
+
+	private void close(DatagramChannel c) {
+		synchronized (this) {
+			if (channel == c) {
+				channel = null;
+			}
+		}
+		try {
+			c.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
 }
@@ -0,0 +1,110 @@
+package metrics_influxdb;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Record the slow phases of the reports as Java Flight Recorder events "metrics_influxdb.ReportPhase"
+ * (category Metrics / InfluxDB), with the phase, metric, type, payload size (in chars) and duration, to be
+ * correlated with the GC, socket, ... events of the recording.
+ *
+ * The event is defined at runtime with jdk.jfr.EventFactory (JDK 11+) by reflection, so the library
+ * still runs on older JVMs (see {@link #isSupported()}). The event is committed when its duration is
+ * known (end of the phase), so the duration of the phase is in the field "elapsed" (the event
+ * itself has no duration, "duration" is a field reserved by JFR).
+ */
+public class JfrPhaseListener implements ReportPhaseListener {
+	public static final String EVENT_NAME = "metrics_influxdb.ReportPhase";
+
+	private final Object factory;
+	private final Object eventType;
+	private final Method isEnabled;
+	private final Method newEvent;
+	private final Method set;
+	private final Method commit;
+
+	/**
+	 * @throws UnsupportedOperationException if the JVM doesn't provide jdk.jfr.EventFactory (before JDK 11)
+	 */
+	public JfrPhaseListener() {
+		try {
+			Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+			Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+
+			List<Object> eventAnnotations = new ArrayList<Object>();
+			eventAnnotations.add(annotationElement.newInstance(annotation("jdk.jfr.Name"), EVENT_NAME));
+			eventAnnotations.add(annotationElement.newInstance(annotation("jdk.jfr.Label"), "InfluxDB Report Phase"));
+			eventAnnotations.add(annotationElement.newInstance(annotation("jdk.jfr.Description"), "A phase of a report of InfluxdbReporter slower than its threshold"));
+			eventAnnotations.add(annotationElement.newInstance(annotation("jdk.jfr.Category"), new String[] { "Metrics", "InfluxDB" }));
+			// the thread is enough to correlate, the stack is the one of the reporter
+			eventAnnotations.add(annotationElement.newInstance(annotation("jdk.jfr.StackTrace"), false));
+
+			List<Object> fields = new ArrayList<Object>();
+			fields.add(valueDescriptor.newInstance(String.class, "phase", labels(annotationElement, "Phase")));
+			fields.add(valueDescriptor.newInstance(String.class, "metric", labels(annotationElement, "Metric")));
+			fields.add(valueDescriptor.newInstance(String.class, "type", labels(annotationElement, "Type")));
+			// chars, not bytes : the size of the UTF-8 encoding is not known when the phase ends (DataAmount has no unit for chars)
+			fields.add(valueDescriptor.newInstance(long.class, "payloadChars", labels(annotationElement, "Payload (chars)")));
+			fields.add(valueDescriptor.newInstance(long.class, "elapsed", Arrays.asList(
+				annotationElement.newInstance(annotation("jdk.jfr.Label"), "Duration"),
+				annotationElement.newInstance(annotation("jdk.jfr.Timespan"), "NANOSECONDS"))));
+
+			factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, eventAnnotations, fields);
+			factoryClass.getMethod("register").invoke(factory);
+			eventType = factoryClass.getMethod("getEventType").invoke(factory);
+			isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+			newEvent = factoryClass.getMethod("newEvent");
+			set = eventClass.getMethod("set", int.class, Object.class);
+			commit = eventClass.getMethod("commit");
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("JFR events are not supported by this JVM (JDK 11+ required)", e);
+		}
+	}
+
+	/**
+	 * Returns true if the JVM provides jdk.jfr.EventFactory (JDK 11+).
+	 */
+	public static boolean isSupported() {
+		try {
+			Class.forName("jdk.jfr.EventFactory");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void slowPhase(Phase phase, String metric, String type, long payloadChars, long durationNanos) {
+		try {
+			if (!(Boolean) isEnabled.invoke(eventType)) {
+				return;
+			}
+			Object event = newEvent.invoke(factory);
+			set.invoke(event, 0, phase.name());
+			set.invoke(event, 1, metric);
+			set.invoke(event, 2, type);
+			set.invoke(event, 3, payloadChars);
+			set.invoke(event, 4, durationNanos);
+			commit.invoke(event);
+		} catch (Exception e) {
+			// the recording is best effort, never fail a report
+		}
+	}
+
+	private static Class<? extends Annotation> annotation(String className) throws ClassNotFoundException {
+		return Class.forName(className).asSubclass(Annotation.class);
+	}
+
+	private static List<Object> labels(Constructor<?> annotationElement, String label) throws Exception {
+		return Collections.singletonList(annotationElement.newInstance(annotation("jdk.jfr.Label"), label));
+	}
+}
@@ -1,5 +1,8 @@
 package metrics_influxdb;
 
+import java.io.IOException;
+import java.util.BitSet;
+
 interface JsonBuilder {
 
 	/**
@@ -17,6 +20,32 @@ interface JsonBuilder {
 	 */
 	public abstract String toJsonString();
 
+	/**
+	 * Returns the number of series appended since the last reset.
+	 */
+	public abstract int seriesCount();
+
+	/**
+	 * Returns the size (in chars) of the json of the series at index (in order of append).
+	 */
+	public abstract int seriesSize(int index);
+
+	/**
+	 * generate the json of the series [from, to[ (in order of append) as String.
+	 */
+	public abstract String toJsonString(int from, int to);
+
+	/**
+	 * Append the json of the series [from, to[ (in order of append) to out, as {@link #toJsonString(int, int)}
+	 * without creating the String.
+	 */
+	public abstract void appendTo(Appendable out, int from, int to) throws IOException;
+
+	/**
+	 * Remove the series at the indexes set in series, the following series are shifted down.
+	 */
+	public abstract void removeSeries(BitSet series);
+
 	/**
 	 * Append series of data into the next Request to send.
 	 *
@@ -1,10 +1,19 @@
 package metrics_influxdb;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 
 class JsonBuilderDefault implements JsonBuilder {
-	private final StringBuilder json = new StringBuilder();
+	// capacity of json above which it is reallocated on reset if half empty
+	private static final int TRIM_CAPACITY = 64 * 1024;
+
+	private StringBuilder json = new StringBuilder();
 	private boolean hasSeriesData;
+	// start and end offsets (in json) of every series
+	private int[] seriesBounds = new int[32];
+	private int seriesCount;
 
 	@Override
 	public boolean hasSeriesData() {
@@ -13,9 +22,10 @@ class JsonBuilderDefault implements JsonBuilder {
 
 	@Override
 	public void reset() {
-		json.setLength(0);
+		json = trim(json);
 		json.append('[');
 		hasSeriesData = false;
+		seriesCount = 0;
 	}
 
 	@Override
@@ -26,11 +36,76 @@ class JsonBuilderDefault implements JsonBuilder {
 		return str;
 	}
 
+	@Override
+	public int seriesCount() {
+		return seriesCount;
+	}
+
+	@Override
+	public int seriesSize(int index) {
+		if (index < 0 || index >= seriesCount) {
+			throw new IndexOutOfBoundsException("series " + index + " of " + seriesCount);
+		}
+		return seriesBounds[index * 2 + 1] - seriesBounds[index * 2];
+	}
+
+	@Override
+	public String toJsonString(int from, int to) {
+		if (from < 0 || to > seriesCount || from > to) {
+			throw new IndexOutOfBoundsException("series [" + from + ", " + to + "[ of " + seriesCount);
+		}
+		if (from == to) {
+			return "[]";
+		}
+		int start = seriesBounds[from * 2];
+		int end = seriesBounds[(to - 1) * 2 + 1];
+		return new StringBuilder(end - start + 2).append('[').append(json, start, end).append(']').toString();
+	}
+
+	@Override
+	public void appendTo(Appendable out, int from, int to) throws IOException {
+		if (from < 0 || to > seriesCount || from > to) {
+			throw new IndexOutOfBoundsException("series [" + from + ", " + to + "[ of " + seriesCount);
+		}
+		out.append('[');
+		if (from < to) {
+			out.append(json, seriesBounds[from * 2], seriesBounds[(to - 1) * 2 + 1]);
+		}
+		out.append(']');
+	}
+
+	@Override
+	public void removeSeries(BitSet series) {
+		// compact the kept series (separated by ',') in place
+		int length = 1;
+		int kept = 0;
+		for (int i = 0; i < seriesCount; i++) {
+			if (series.get(i)) {
+				continue;
+			}
+			if (kept > 0) {
+				json.setCharAt(length++, ',');
+			}
+			int start = seriesBounds[i * 2];
+			int end = seriesBounds[i * 2 + 1];
+			seriesBounds[kept * 2] = length;
+			for (int j = start; j < end; j++) {
+				json.setCharAt(length++, json.charAt(j));
+			}
+			seriesBounds[kept * 2 + 1] = length;
+			kept++;
+		}
+		json.setLength(length);
+		seriesCount = kept;
+		hasSeriesData = kept > 0;
+	}
+
 	@Override
 	public void appendSeries(String namePrefix, String name, String nameSuffix, String[] columns, Object[][] points) {
 		hasSeriesData = true;
 		if (json.length() > 1)
 			json.append(',');
+		int start = json.length();
 		json.append("{\"name\":\"").append(namePrefix).append(name).append(nameSuffix).append("\",\"columns\":[");
 		for (int i = 0; i < columns.length; i++) {
 			if (i > 0)
@@ -47,7 +122,9 @@ class JsonBuilderDefault implements JsonBuilder {
 				if (j > 0)
 					json.append(',');
 				Object value = row[j];
-				if (value instanceof String) {
+				if (value instanceof DoubleFormat.Rounded) {
+					((DoubleFormat.Rounded) value).appendTo(json);
+				} else if (value instanceof String) {
 					json.append('"').append(value).append('"');
 				} else if((value instanceof Collection) && ((Collection<?>)value).size()<1) {
 					json.append("null");
@@ -60,6 +137,12 @@ class JsonBuilderDefault implements JsonBuilder {
 				{
 					json.append("null");
 				}
+				else if (value instanceof Double) {
+					DoubleToDecimal.append(json, (double) (Double) value);
+				}
+				else if (value instanceof Float) {
+					DoubleToDecimal.append(json, (float) (Float) value);
+				}
 				else {
 					json.append(value);
 				}
@@ -67,6 +150,24 @@ class JsonBuilderDefault implements JsonBuilder {
 			json.append(']');
 		}
 		json.append("]}");
+		if (seriesBounds.length < (seriesCount + 1) * 2) {
+			seriesBounds = Arrays.copyOf(seriesBounds, seriesBounds.length * 2);
+		}
+		seriesBounds[seriesCount * 2] = start;
+		seriesBounds[seriesCount * 2 + 1] = json.length();
+		seriesCount++;
+	}
+
+	/**
+	 * Release the memory of a builder grown by an unusually large request.
+	 */
+	private static StringBuilder trim(StringBuilder sb) {
+		int length = sb.length();
+		if (sb.capacity() > TRIM_CAPACITY && sb.capacity() > length * 2) {
+			return new StringBuilder(Math.max(length, 16));
+		}
+		sb.setLength(0);
+		return sb;
 	}
 
 	/* (non-Javadoc)
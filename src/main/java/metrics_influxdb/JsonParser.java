@@ -0,0 +1,218 @@
+package metrics_influxdb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JSON parser, enough to read back the series written by {@link JsonBuilderDefault}.
+ *
+ * Objects are parsed as Map (ordered), arrays as List, integral numbers as Long, other numbers
+ * (and NaN) as Double, strings as String, true/false as Boolean and null as null.
+ */
+class JsonParser {
+	private final String json;
+	private int pos;
+
+	private JsonParser(String json) {
+		this.json = json;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if json is not valid
+	 */
+	static Object parse(String json) {
+		JsonParser parser = new JsonParser(json);
+		Object value = parser.readValue();
+		parser.skipWhitespace();
+		if (parser.pos < json.length()) {
+			throw parser.error("end of input expected");
+		}
+		return value;
+	}
+
+	private Object readValue() {
+		skipWhitespace();
+		if (pos >= json.length()) {
+			throw error("value expected");
+		}
+		char c = json.charAt(pos);
+		switch (c) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			readLiteral("true");
+			return Boolean.TRUE;
+		case 'f':
+			readLiteral("false");
+			return Boolean.FALSE;
+		case 'n':
+			readLiteral("null");
+			return null;
+		case 'N':
+			// written as is by JsonBuilderDefault
+			readLiteral("NaN");
+			return Double.NaN;
+		default:
+			return readNumber();
+		}
+	}
+
+	private Map<String, Object> readObject() {
+		Map<String, Object> back = new LinkedHashMap<String, Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return back;
+		}
+		while (true) {
+			skipWhitespace();
+			if (peek() != '"') {
+				throw error("name expected");
+			}
+			String name = readString();
+			skipWhitespace();
+			expect(':');
+			back.put(name, readValue());
+			skipWhitespace();
+			if (peek() == ',') {
+				pos++;
+			} else {
+				expect('}');
+				return back;
+			}
+		}
+	}
+
+	private List<Object> readArray() {
+		List<Object> back = new ArrayList<Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return back;
+		}
+		while (true) {
+			back.add(readValue());
+			skipWhitespace();
+			if (peek() == ',') {
+				pos++;
+			} else {
+				expect(']');
+				return back;
+			}
+		}
+	}
+
+	private String readString() {
+		pos++;
+		StringBuilder back = null;
+		int start = pos;
+		while (pos < json.length()) {
+			char c = json.charAt(pos);
+			if (c == '"') {
+				String s = (back == null) ? json.substring(start, pos) : back.append(json, start, pos).toString();
+				pos++;
+				return s;
+			}
+			if (c != '\\') {
+				pos++;
+				continue;
+			}
+			if (back == null) {
+				back = new StringBuilder();
+			}
+			back.append(json, start, pos);
+			pos++;
+			char e = peek();
+			pos++;
+			switch (e) {
+			case 'b': back.append('\b'); break;
+			case 'f': back.append('\f'); break;
+			case 'n': back.append('\n'); break;
+			case 'r': back.append('\r'); break;
+			case 't': back.append('\t'); break;
+			case 'u':
+				if (pos + 4 > json.length()) {
+					throw error("unicode escape expected");
+				}
+				try {
+					back.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+				} catch (NumberFormatException ex) {
+					throw error("unicode escape expected");
+				}
+				pos += 4;
+				break;
+			default: back.append(e);
+			}
+			start = pos;
+		}
+		throw error("unterminated string");
+	}
+
+	private Object readNumber() {
+		int start = pos;
+		boolean integral = true;
+		while (pos < json.length()) {
+			char c = json.charAt(pos);
+			if ((c >= '0' && c <= '9') || c == '-') {
+				pos++;
+			} else if (c == '.' || c == 'e' || c == 'E' || c == '+') {
+				integral = false;
+				pos++;
+			} else {
+				break;
+			}
+		}
+		String s = json.substring(start, pos);
+		try {
+			if (integral) {
+				try {
+					return Long.valueOf(s);
+				} catch (NumberFormatException e) {
+					// too large for a long
+				}
+			}
+			return Double.valueOf(s);
+		} catch (NumberFormatException e) {
+			throw error("number expected");
+		}
+	}
+
+	private void readLiteral(String literal) {
+		if (!json.startsWith(literal, pos)) {
+			throw error(literal + " expected");
+		}
+		pos += literal.length();
+	}
+
+	private void expect(char c) {
+		if (peek() != c) {
+			throw error("'" + c + "' expected");
+		}
+		pos++;
+	}
+
+	private char peek() {
+		if (pos >= json.length()) {
+			throw error("unexpected end of input");
+		}
+		return json.charAt(pos);
+	}
+
+	private void skipWhitespace() {
+		while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+			pos++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at " + pos);
+	}
+}
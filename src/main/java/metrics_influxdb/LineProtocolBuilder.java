@@ -0,0 +1,218 @@
+package metrics_influxdb;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Build a request in the line protocol of InfluxDB 0.9+ (one line per point) :
+ *
+ * <pre>
+ *   name column1=value1,column2=value2 time
+ * </pre>
+ *
+ * The "time" column becomes the timestamp of the line, null, NaN and infinite values are omitted.
+ * Numbers are written without the integer suffix, so every numeric field is stored as a float
+ * whatever the type of the value.
+ */
+class LineProtocolBuilder implements JsonBuilder {
+	private static final String TIME_COLUMN = "time";
+	// capacity of lines above which it is reallocated on reset if half empty
+	private static final int TRIM_CAPACITY = 64 * 1024;
+
+	private StringBuilder lines = new StringBuilder();
+	private boolean hasSeriesData;
+	// start and end offsets (in lines) of every series
+	private int[] seriesBounds = new int[32];
+	private int seriesCount;
+
+	@Override
+	public boolean hasSeriesData() {
+		return hasSeriesData;
+	}
+
+	@Override
+	public void reset() {
+		lines = trim(lines);
+		hasSeriesData = false;
+		seriesCount = 0;
+	}
+
+	@Override
+	public String toJsonString() {
+		return lines.toString();
+	}
+
+	@Override
+	public int seriesCount() {
+		return seriesCount;
+	}
+
+	@Override
+	public int seriesSize(int index) {
+		if (index < 0 || index >= seriesCount) {
+			throw new IndexOutOfBoundsException("series " + index + " of " + seriesCount);
+		}
+		return seriesBounds[index * 2 + 1] - seriesBounds[index * 2];
+	}
+
+	@Override
+	public String toJsonString(int from, int to) {
+		if (from < 0 || to > seriesCount || from > to) {
+			throw new IndexOutOfBoundsException("series [" + from + ", " + to + "[ of " + seriesCount);
+		}
+		if (from == to) {
+			return "";
+		}
+		return lines.substring(seriesBounds[from * 2], seriesBounds[(to - 1) * 2 + 1]);
+	}
+
+	@Override
+	public void appendTo(Appendable out, int from, int to) throws IOException {
+		if (from < 0 || to > seriesCount || from > to) {
+			throw new IndexOutOfBoundsException("series [" + from + ", " + to + "[ of " + seriesCount);
+		}
+		if (from < to) {
+			out.append(lines, seriesBounds[from * 2], seriesBounds[(to - 1) * 2 + 1]);
+		}
+	}
+
+	@Override
+	public void removeSeries(BitSet series) {
+		// compact the kept series in place
+		int length = 0;
+		int kept = 0;
+		for (int i = 0; i < seriesCount; i++) {
+			if (series.get(i)) {
+				continue;
+			}
+			int start = seriesBounds[i * 2];
+			int end = seriesBounds[i * 2 + 1];
+			seriesBounds[kept * 2] = length;
+			for (int j = start; j < end; j++) {
+				lines.setCharAt(length++, lines.charAt(j));
+			}
+			seriesBounds[kept * 2 + 1] = length;
+			kept++;
+		}
+		lines.setLength(length);
+		seriesCount = kept;
+		hasSeriesData = kept > 0;
+	}
+
+	@Override
+	public void appendSeries(String namePrefix, String name, String nameSuffix, String[] columns, Object[][] points) {
+		hasSeriesData = true;
+		int start = lines.length();
+		for (Object[] row : points) {
+			int lineStart = lines.length();
+			appendEscaped(namePrefix, false);
+			appendEscaped(name, false);
+			appendEscaped(nameSuffix, false);
+			lines.append(' ');
+			Object time = null;
+			int nbFields = 0;
+			for (int j = 0; j < row.length; j++) {
+				Object value = row[j];
+				if (TIME_COLUMN.equals(columns[j])) {
+					time = value;
+				} else if (isWritable(value)) {
+					if (nbFields > 0) {
+						lines.append(',');
+					}
+					appendEscaped(columns[j], true);
+					lines.append('=');
+					appendValue(value);
+					nbFields++;
+				}
+			}
+			if (nbFields == 0) {
+				// a line without field is invalid
+				lines.setLength(lineStart);
+				continue;
+			}
+			if (time != null) {
+				lines.append(' ').append(time);
+			}
+			lines.append('\n');
+		}
+		if (seriesBounds.length < (seriesCount + 1) * 2) {
+			seriesBounds = Arrays.copyOf(seriesBounds, seriesBounds.length * 2);
+		}
+		seriesBounds[seriesCount * 2] = start;
+		seriesBounds[seriesCount * 2 + 1] = lines.length();
+		seriesCount++;
+	}
+
+	/**
+	 * Release the memory of a builder grown by an unusually large request.
+	 */
+	private static StringBuilder trim(StringBuilder sb) {
+		int length = sb.length();
+		if (sb.capacity() > TRIM_CAPACITY && sb.capacity() > length * 2) {
+			return new StringBuilder(Math.max(length, 16));
+		}
+		sb.setLength(0);
+		return sb;
+	}
+
+	private static boolean isWritable(Object value) {
+		if (value == null) {
+			return false;
+		}
+		if ((value instanceof Collection) && ((Collection<?>) value).size() < 1) {
+			return false;
+		}
+		if (value instanceof Double) {
+			double d = (Double) value;
+			return !Double.isNaN(d) && !Double.isInfinite(d);
+		}
+		if (value instanceof Float) {
+			float f = (Float) value;
+			return !Float.isNaN(f) && !Float.isInfinite(f);
+		}
+		return true;
+	}
+
+	private void appendValue(Object value) {
+		if (value instanceof DoubleFormat.Rounded) {
+			((DoubleFormat.Rounded) value).appendTo(lines);
+		} else if (value instanceof Double) {
+			DoubleToDecimal.append(lines, (double) (Double) value);
+		} else if (value instanceof Float) {
+			DoubleToDecimal.append(lines, (float) (Float) value);
+		} else if (value instanceof Number || value instanceof Boolean) {
+			lines.append(value);
+		} else {
+			lines.append('"');
+			String str = value.toString();
+			for (int i = 0; i < str.length(); i++) {
+				char c = str.charAt(i);
+				if (c == '"' || c == '\\') {
+					lines.append('\\');
+				}
+				lines.append(c);
+			}
+			lines.append('"');
+		}
+	}
+
+	/**
+	 * Escape ',' and ' ' (and '=' for keys) with a '\'.
+	 */
+	private void appendEscaped(String str, boolean key) {
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == ',' || c == ' ' || (key && c == '=')) {
+				lines.append('\\');
+			}
+			lines.append(c);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return lines.toString();
+	}
+}
@@ -0,0 +1,148 @@
+package metrics_influxdb;
+
+import java.util.BitSet;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+
+import metrics_influxdb.InfluxdbReporter.Priority;
+
+/**
+ * Keep the requests of a report within a byte and time budget by removing the series of the
+ * lowest priority first. The series of priority CRITICAL are never removed.
+ *
+ * The time budget is enforced through an allowance (in bytes) per destination, adapted to the
+ * outcome of the sends : when a send fails or lasts longer than the time left in the budget,
+ * the allowance is reduced to what would have been sent in time (halved on failure), it is
+ * doubled (up to the byte budget) after every send in time. The allowance of a report is scaled
+ * by the fraction of the time budget left after the collection of the metrics.
+ * Without time budget, the allowance stays the byte budget (a failed send doesn't reduce it).
+ */
+class LoadShedder {
+	private static final Priority[] PRIORITIES = Priority.values();
+	private static final long MIN_ALLOWANCE = 1024;
+
+	private final long maxBytes;
+	private final long maxNanos;
+	private final MetricFilter[] filters;
+	private final Priority[] priorities;
+	// guarded by this
+	private final long[] allowances;
+	private final long[] shedSeries = new long[PRIORITIES.length];
+
+	/**
+	 * @param maxBytes the maximum size (in chars) of a request, a negative value disables the limit
+	 * @param maxNanos the maximum duration of a report, 0 or a negative value disables the limit
+	 * @param filters the rules of the priorities, the first matching wins
+	 * @param priorities the priority of the metrics matching filters[i]
+	 * @param nbDestinations the number of destinations of the reporter
+	 */
+	LoadShedder(long maxBytes, long maxNanos, MetricFilter[] filters, Priority[] priorities, int nbDestinations) {
+		this.maxBytes = (maxBytes < 0) ? Long.MAX_VALUE : maxBytes;
+		this.maxNanos = maxNanos;
+		this.filters = filters;
+		this.priorities = priorities;
+		this.allowances = new long[nbDestinations];
+		for (int i = 0; i < nbDestinations; i++) {
+			allowances[i] = this.maxBytes;
+		}
+	}
+
+	/**
+	 * Returns the priority of the metric, NORMAL if no rule matches.
+	 */
+	Priority priorityOf(String name, Metric metric) {
+		for (int i = 0; i < filters.length; i++) {
+			if (filters[i].matches(name, metric)) {
+				return priorities[i];
+			}
+		}
+		return Priority.NORMAL;
+	}
+
+	/**
+	 * Returns the maximum size of the request of destination d for a report whose collection
+	 * lasted elapsedNanos.
+	 */
+	synchronized long budget(int d, long elapsedNanos) {
+		long allowance = allowances[d];
+		if (maxNanos <= 0) {
+			return allowance;
+		}
+		if (elapsedNanos >= maxNanos) {
+			return 0;
+		}
+		return (long) (allowance * ((double) (maxNanos - elapsedNanos) / maxNanos));
+	}
+
+	/**
+	 * Remove from request the series of the lowest priorities, the last appended first, until its
+	 * size is within budget (or only CRITICAL series are left).
+	 *
+	 * @param seriesPriorities the ordinal of the priority of every series of request
+	 * @param shedCounts incremented with the number of series removed, per priority
+	 * @return the indexes of the series removed, null if none
+	 */
+	BitSet shed(JsonBuilder request, byte[] seriesPriorities, long budget, long[] shedCounts) {
+		int nbSeries = request.seriesCount();
+		long size = 0;
+		for (int i = 0; i < nbSeries; i++) {
+			size += request.seriesSize(i);
+		}
+		if (size <= budget) {
+			return null;
+		}
+		BitSet removed = new BitSet(nbSeries);
+		long[] counts = new long[PRIORITIES.length];
+		for (int p = PRIORITIES.length - 1; p > Priority.CRITICAL.ordinal() && size > budget; p--) {
+			for (int i = nbSeries - 1; i >= 0 && size > budget; i--) {
+				if (i < seriesPriorities.length && seriesPriorities[i] == p) {
+					removed.set(i);
+					size -= request.seriesSize(i);
+					counts[p]++;
+				}
+			}
+		}
+		if (removed.isEmpty()) {
+			return null;
+		}
+		request.removeSeries(removed);
+		synchronized (this) {
+			for (int p = 0; p < PRIORITIES.length; p++) {
+				shedCounts[p] += counts[p];
+				shedSeries[p] += counts[p];
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Adapt the allowance of destination d to the outcome of a send, if there is a time budget.
+	 *
+	 * @param size the size of the request sent
+	 * @param sendNanos the duration of the send
+	 * @param elapsedNanos the duration of the collection of the metrics of the request
+	 * @param success false if the send failed
+	 */
+	synchronized void sent(int d, long size, long sendNanos, long elapsedNanos, boolean success) {
+		if (maxNanos <= 0) {
+			return;
+		}
+		long available = maxNanos - elapsedNanos;
+		if (!success) {
+			allowances[d] = Math.max(MIN_ALLOWANCE, size / 2);
+		} else if (sendNanos > available) {
+			long inTime = (available <= 0) ? 0 : (long) (size * ((double) available / sendNanos));
+			allowances[d] = Math.max(MIN_ALLOWANCE, inTime);
+		} else {
+			allowances[d] = (allowances[d] > maxBytes / 2) ? maxBytes : allowances[d] * 2;
+		}
+	}
+
+	/**
+	 * Returns the number of series of priority removed since the creation of the reporter.
+	 */
+	synchronized long shedSeries(Priority priority) {
+		return shedSeries[priority.ordinal()];
+	}
+}
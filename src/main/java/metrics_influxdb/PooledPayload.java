@@ -0,0 +1,176 @@
+package metrics_influxdb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * The UTF-8 encoding of a request, appended (without intermediate String) into a single slab
+ * leased from a {@link BufferPool} (or a heap buffer if there is no pool) and streamed to out
+ * every time the slab is full : a send holds one slab, not a copy of the whole request.
+ * {@link #finish()} writes the end of the payload, {@link #release()} must be called after the send.
+ *
+ * Not thread-safe.
+ */
+class PooledPayload implements Appendable {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int HEAP_SLAB_SIZE = 16 * 1024;
+
+	private final BufferPool pool;
+	private final OutputStream out;
+	private final CharsetEncoder encoder = UTF_8.newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private ByteBuffer slab;
+	private byte[] scratch;
+	private long length;
+
+	/**
+	 * @param pool the pool of the slab, null to use a heap buffer
+	 * @param out the destination of the encoded bytes
+	 */
+	PooledPayload(BufferPool pool, OutputStream out) {
+		this.pool = pool;
+		this.out = out;
+	}
+
+	/**
+	 * Returns the size (in bytes) of the UTF-8 encoding of the series [from, to[ of request, as
+	 * written by a PooledPayload (an unpaired surrogate is replaced by '?'), without encoding them.
+	 */
+	static long encodedLength(JsonBuilder request, int from, int to) throws IOException {
+		final long[] length = new long[1];
+		request.appendTo(new Appendable() {
+			@Override
+			public Appendable append(CharSequence csq) {
+				return append(csq, 0, csq.length());
+			}
+
+			@Override
+			public Appendable append(CharSequence csq, int start, int end) {
+				long n = 0;
+				for (int i = start; i < end; i++) {
+					char c = csq.charAt(i);
+					if (c < 0x80) {
+						n++;
+					} else if (c < 0x800) {
+						n += 2;
+					} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(csq.charAt(i + 1))) {
+						n += 4;
+						i++;
+					} else if (Character.isSurrogate(c)) {
+						n++;
+					} else {
+						n += 3;
+					}
+				}
+				length[0] += n;
+				return this;
+			}
+
+			@Override
+			public Appendable append(char c) {
+				return append(String.valueOf(c), 0, 1);
+			}
+		}, from, to);
+		return length[0];
+	}
+
+	@Override
+	public Appendable append(CharSequence csq) throws IOException {
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public Appendable append(CharSequence csq, int start, int end) throws IOException {
+		CharBuffer in = CharBuffer.wrap(csq, start, end);
+		encoder.reset();
+		while (true) {
+			if (slab == null || !slab.hasRemaining()) {
+				drain();
+			}
+			CoderResult result = encoder.encode(in, slab, true);
+			if (result.isUnderflow()) {
+				break;
+			}
+			if (!result.isOverflow()) {
+				throw new CharacterCodingException();
+			}
+		}
+		while (encoder.flush(slab).isOverflow()) {
+			drain();
+		}
+		return this;
+	}
+
+	@Override
+	public Appendable append(char c) throws IOException {
+		if (c < 0x80) {
+			if (slab == null || !slab.hasRemaining()) {
+				drain();
+			}
+			slab.put((byte) c);
+			return this;
+		}
+		return append(String.valueOf(c));
+	}
+
+	/**
+	 * Returns the number of bytes appended.
+	 */
+	long length() {
+		return length + ((slab == null) ? 0 : slab.position());
+	}
+
+	/**
+	 * Write the bytes still in the slab to out.
+	 */
+	void finish() throws IOException {
+		if (slab != null) {
+			drain();
+		}
+	}
+
+	/**
+	 * Give the slab back to the pool.
+	 */
+	void release() {
+		if (pool != null && slab != null) {
+			pool.release(slab);
+		}
+		slab = null;
+	}
+
+	/**
+	 * Write the content of the slab to out and clear it (lease it on the first call).
+	 */
+	private void drain() throws IOException {
+		if (slab == null) {
+			slab = (pool == null) ? ByteBuffer.allocate(HEAP_SLAB_SIZE) : pool.acquire();
+			return;
+		}
+		// the Buffer methods, not the covariant overrides of ByteBuffer (JDK 9+), to run on JDK 7 and 8
+		((Buffer) slab).flip();
+		length += slab.remaining();
+		if (slab.hasArray()) {
+			out.write(slab.array(), slab.arrayOffset(), slab.remaining());
+		} else {
+			if (scratch == null) {
+				scratch = new byte[8 * 1024];
+			}
+			while (slab.hasRemaining()) {
+				int n = Math.min(slab.remaining(), scratch.length);
+				slab.get(scratch, 0, n);
+				out.write(scratch, 0, n);
+			}
+		}
+		((Buffer) slab).clear();
+	}
+}
@@ -0,0 +1,264 @@
+package metrics_influxdb;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Remember, per metric name, the count and the time of its previous report.
+ *
+ * The state is stored in parallel primitive arrays (open addressing with linear probing)
+ * to avoid the boxing of a Long and the creation of a map entry on every report.
+ * The metric instance is kept (by identity) to detect a metric removed then registered
+ * again under the same name.
+ *
+ * Entries not accessed during a report cycle (see {@link #beginCycle()} and
+ * {@link #endCycle()}) are dropped, so removed metrics don't leak.
+ *
+ * Not thread-safe.
+ */
+class PreviousCounts {
+	private static final int MIN_CAPACITY = 16;
+	private static final long UNKNOWN = Long.MIN_VALUE;
+
+	private String[] names;
+	private Object[] metrics;
+	private long[] counts;
+	private long[] times;
+	private int[] cycles;
+	private int size;
+	private int cycle;
+
+	PreviousCounts() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Start a new report cycle.
+	 */
+	void beginCycle() {
+		cycle++;
+	}
+
+	/**
+	 * End the current report cycle, forget every metric not accessed since {@link #beginCycle()}.
+	 */
+	void endCycle() {
+		int stale = 0;
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] != null && cycles[i] != cycle) {
+				stale++;
+			}
+		}
+		if (stale > 0) {
+			rehash(Math.max(MIN_CAPACITY, capacityFor(size - stale)), true);
+		}
+	}
+
+	/**
+	 * Returns the slot of the metric, created if needed. The slot is valid until the next call
+	 * of slot(...) or endCycle().
+	 * If the metric is new (or a different instance than the previous one registered with the same name),
+	 * the slot is {@link #isKnown(int) unknown}.
+	 */
+	int slot(String name, Object metric) {
+		if ((size + 1) * 4 > names.length * 3) {
+			rehash(names.length * 2, false);
+		}
+		int i = indexFor(name, names.length);
+		while (names[i] != null) {
+			if (names[i].equals(name)) {
+				if (metrics[i] != metric) {
+					metrics[i] = metric;
+					counts[i] = 0;
+					times[i] = UNKNOWN;
+				}
+				cycles[i] = cycle;
+				return i;
+			}
+			i = (i + 1) & (names.length - 1);
+		}
+		names[i] = name;
+		metrics[i] = metric;
+		counts[i] = 0;
+		times[i] = UNKNOWN;
+		cycles[i] = cycle;
+		size++;
+		return i;
+	}
+
+	/**
+	 * Returns true if the slot has been {@link #update(int, long, long) updated} since its creation.
+	 */
+	boolean isKnown(int slot) {
+		return times[slot] != UNKNOWN;
+	}
+
+	long count(int slot) {
+		return counts[slot];
+	}
+
+	long time(int slot) {
+		return times[slot];
+	}
+
+	void update(int slot, long count, long time) {
+		counts[slot] = count;
+		times[slot] = time;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * The updates of a report, to {@link PreviousCounts#rollback(Updates) roll back} if the report is not sent.
+	 */
+	static final class Updates {
+		private String[] names = new String[16];
+		private Object[] metrics = new Object[16];
+		private long[] deltas = new long[16];
+		private long[] previousTimes = new long[16];
+		// the index of the series of every update in the request, or a negative tag
+		private int[] series = new int[16];
+		private long time;
+		private int size;
+
+		/**
+		 * Record the update of the slot with the count and the time of a report (all the updates
+		 * of a report share the same time).
+		 *
+		 * @param series the index of the series of the metric in the request (see
+		 * {@link PreviousCounts#rollback(Updates, BitSet)}), or a negative tag
+		 */
+		void add(PreviousCounts previousCounts, int slot, long count, long time, int series) {
+			if (size == names.length) {
+				names = Arrays.copyOf(names, size * 2);
+				metrics = Arrays.copyOf(metrics, size * 2);
+				deltas = Arrays.copyOf(deltas, size * 2);
+				previousTimes = Arrays.copyOf(previousTimes, size * 2);
+				this.series = Arrays.copyOf(this.series, size * 2);
+			}
+			names[size] = previousCounts.names[slot];
+			metrics[size] = previousCounts.metrics[slot];
+			deltas[size] = count - previousCounts.counts[slot];
+			previousTimes[size] = previousCounts.times[slot];
+			this.series[size] = series;
+			this.time = time;
+			size++;
+		}
+
+		/**
+		 * Set the series of the updates added with the tag to series (eg the series of a rollup,
+		 * appended after its metrics).
+		 */
+		void bind(int tag, int series) {
+			for (int u = 0; u < size; u++) {
+				if (this.series[u] == tag) {
+					this.series[u] = series;
+				}
+			}
+		}
+
+		void clear() {
+			Arrays.fill(names, 0, size, null);
+			Arrays.fill(metrics, 0, size, null);
+			size = 0;
+		}
+	}
+
+	/**
+	 * Undo the updates of a report not sent : the counts are moved back by their delta (so the
+	 * next report includes the increments not sent, even if another report updated them since)
+	 * and the times are restored if they were not updated since. The metrics removed since are ignored.
+	 */
+	void rollback(Updates updates) {
+		for (int u = 0; u < updates.size; u++) {
+			rollback(updates, u);
+		}
+		updates.clear();
+	}
+
+	/**
+	 * Undo the updates of the series removed from a request (eg shed), as {@link #rollback(Updates)},
+	 * and forget them, so they are not rolled back again if the rest of the request is not sent.
+	 */
+	void rollback(Updates updates, BitSet removed) {
+		int kept = 0;
+		for (int u = 0; u < updates.size; u++) {
+			int series = updates.series[u];
+			if (series >= 0 && removed.get(series)) {
+				rollback(updates, u);
+				continue;
+			}
+			updates.names[kept] = updates.names[u];
+			updates.metrics[kept] = updates.metrics[u];
+			updates.deltas[kept] = updates.deltas[u];
+			updates.previousTimes[kept] = updates.previousTimes[u];
+			updates.series[kept] = series;
+			kept++;
+		}
+		Arrays.fill(updates.names, kept, updates.size, null);
+		Arrays.fill(updates.metrics, kept, updates.size, null);
+		updates.size = kept;
+	}
+
+	private void rollback(Updates updates, int u) {
+		int i = indexFor(updates.names[u], names.length);
+		while (names[i] != null && !names[i].equals(updates.names[u])) {
+			i = (i + 1) & (names.length - 1);
+		}
+		if (names[i] == null || metrics[i] != updates.metrics[u]) {
+			return;
+		}
+		counts[i] -= updates.deltas[u];
+		if (times[i] == updates.time) {
+			times[i] = updates.previousTimes[u];
+		}
+	}
+
+	private void allocate(int capacity) {
+		names = new String[capacity];
+		metrics = new Object[capacity];
+		counts = new long[capacity];
+		times = new long[capacity];
+		cycles = new int[capacity];
+		size = 0;
+	}
+
+	private void rehash(int capacity, boolean dropStale) {
+		String[] oldNames = names;
+		Object[] oldMetrics = metrics;
+		long[] oldCounts = counts;
+		long[] oldTimes = times;
+		int[] oldCycles = cycles;
+		allocate(capacity);
+		for (int j = 0; j < oldNames.length; j++) {
+			if (oldNames[j] == null || (dropStale && oldCycles[j] != cycle)) {
+				continue;
+			}
+			int i = indexFor(oldNames[j], capacity);
+			while (names[i] != null) {
+				i = (i + 1) & (capacity - 1);
+			}
+			names[i] = oldNames[j];
+			metrics[i] = oldMetrics[j];
+			counts[i] = oldCounts[j];
+			times[i] = oldTimes[j];
+			cycles[i] = oldCycles[j];
+			size++;
+		}
+	}
+
+	private static int capacityFor(int entries) {
+		int capacity = MIN_CAPACITY;
+		while (entries * 4 > capacity * 3) {
+			capacity *= 2;
+		}
+		return capacity;
+	}
+
+	private static int indexFor(String name, int capacity) {
+		int h = name.hashCode();
+		return (h ^ (h >>> 16)) & (capacity - 1);
+	}
+}
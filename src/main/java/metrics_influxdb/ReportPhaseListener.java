@@ -0,0 +1,30 @@
+package metrics_influxdb;
+
+/**
+ * Notified of the phases of a report slower than a threshold, see
+ * {@link InfluxdbReporter.Builder#recordSlowPhases(ReportPhaseListener, long, long, java.util.concurrent.TimeUnit)}.
+ */
+public interface ReportPhaseListener {
+
+	public enum Phase {
+		/** getSnapshot() of a timer or histogram */
+		SNAPSHOT,
+		/** getValue() of a gauge */
+		GAUGE_VALUE,
+		/** the encoding of the series of a metric in the request */
+		ENCODE,
+		/** the send of a request (sendRequest) */
+		SEND
+	}
+
+	/**
+	 * Called on the reporting thread, should be fast.
+	 *
+	 * @param phase the phase
+	 * @param metric the name of the metric, null for SEND
+	 * @param type the type of the metric (timer, histogram, meter, count, value), or the client for SEND
+	 * @param payloadChars the size (in chars, before the UTF-8 encoding) of the encoded series (ENCODE) or request (SEND), else 0
+	 * @param durationNanos the duration of the phase
+	 */
+	public void slowPhase(Phase phase, String metric, String type, long payloadChars, long durationNanos);
+}
@@ -0,0 +1,252 @@
+package metrics_influxdb;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run the reports of many reporters (see {@link InfluxdbReporter.Builder#scheduleOn(ReportScheduler)})
+ * instead of a thread per reporter : a single timer thread triggers the reports, which run on
+ * virtual threads (JDK 21+, when preferred and available) or on a small pool of daemon threads
+ * stopped when idle. A reporter waiting for its next report costs no thread.
+ *
+ * Fairness : a tick of a reporter is skipped while its previous report is still running, so a
+ * reporter doesn't queue reports in front of the others (the queue of the pool is FIFO).
+ * On the pool of platform threads, the reports only build their requests : the blocking sends
+ * run on a second bounded pool shared by all the reporters, and a report waits for them at most
+ * its period, so reporters blocked on hung servers don't hold the threads of the reports.
+ * The sends are fair the same way : a destination whose previous send is still queued or running
+ * is skipped, so a reporter has at most one send per destination in the FIFO queue of the send
+ * pool, and a hung server holds at most one send thread.
+ * On virtual threads, the sends run on virtual threads too.
+ */
+public class ReportScheduler {
+	private static final String THREAD_NAME = "influxdb-reporter";
+	// the default number of send threads per report thread
+	private static final int SEND_THREADS_PER_THREAD = 4;
+	private static ReportScheduler shared;
+
+	/**
+	 * Returns the scheduler shared by the reporters of the JVM configured to use it, on virtual
+	 * threads if available, else on a pool of (at most) one thread per processor (min 2) : the pool
+	 * is sized for the building of the requests, the sends run on a pool of 4 times more threads.
+	 */
+	public static synchronized ReportScheduler shared() {
+		if (shared == null) {
+			int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+			shared = new ReportScheduler(maxThreads, SEND_THREADS_PER_THREAD * maxThreads, true);
+		}
+		return shared;
+	}
+
+	/**
+	 * Returns true if the JVM provides virtual threads (JDK 21+).
+	 */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private final ScheduledThreadPoolExecutor timer;
+	private final ExecutorService workers;
+	private final ExecutorService sends;
+	private final boolean virtual;
+	private final AtomicInteger activeReports = new AtomicInteger();
+	private final AtomicLong skippedTicks = new AtomicLong();
+
+	/**
+	 * @param maxThreads the maximum number of reports running concurrently when the reports don't run on virtual threads,
+	 * the sends run on 4 times more threads
+	 * @param preferVirtualThreads true to run the reports on virtual threads if the JVM provides them
+	 */
+	public ReportScheduler(int maxThreads, boolean preferVirtualThreads) {
+		this(maxThreads, SEND_THREADS_PER_THREAD * maxThreads, preferVirtualThreads);
+	}
+
+	/**
+	 * @param maxThreads the maximum number of reports running concurrently when the reports don't run on virtual threads
+	 * @param maxSendThreads the maximum number of sends running concurrently (for all the reporters) when the reports don't run on virtual threads
+	 * @param preferVirtualThreads true to run the reports on virtual threads if the JVM provides them
+	 */
+	public ReportScheduler(int maxThreads, int maxSendThreads, boolean preferVirtualThreads) {
+		if (maxThreads < 1) {
+			throw new IllegalArgumentException("maxThreads should be positive : " + maxThreads);
+		}
+		if (maxSendThreads < 1) {
+			throw new IllegalArgumentException("maxSendThreads should be positive : " + maxSendThreads);
+		}
+		timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, THREAD_NAME + "-scheduler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.setRemoveOnCancelPolicy(true);
+		ExecutorService executor = preferVirtualThreads ? newVirtualThreadExecutor() : null;
+		virtual = executor != null;
+		if (executor == null) {
+			workers = newPool(maxThreads, THREAD_NAME + "-");
+			sends = newPool(maxSendThreads, THREAD_NAME + "-send-");
+		} else {
+			workers = executor;
+			sends = executor;
+		}
+	}
+
+	/**
+	 * Returns a pool of at most maxThreads daemon threads, stopped when idle, with a FIFO queue.
+	 */
+	private static ExecutorService newPool(int maxThreads, final String namePrefix) {
+		final AtomicInteger threadId = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, namePrefix + threadId.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Returns true if the reports run on virtual threads.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Returns the number of reports running (or waiting for a thread).
+	 */
+	public int getActiveReports() {
+		return activeReports.get();
+	}
+
+	/**
+	 * Returns the number of ticks skipped because the previous report of the reporter was still running.
+	 */
+	public long getSkippedTicks() {
+		return skippedTicks.get();
+	}
+
+	/**
+	 * Stop the scheduler, the running reports are not interrupted.
+	 * The shared scheduler can't be stopped.
+	 */
+	public void shutdown() {
+		synchronized (ReportScheduler.class) {
+			if (this == shared) {
+				throw new IllegalStateException("the shared scheduler can't be stopped");
+			}
+		}
+		timer.shutdownNow();
+		workers.shutdown();
+		sends.shutdown();
+	}
+
+	/**
+	 * Run report every period, skipping the ticks while the previous report is running.
+	 */
+	ScheduledFuture<?> scheduleAtFixedRate(final Runnable report, long period, TimeUnit unit) {
+		final AtomicBoolean running = new AtomicBoolean();
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					report.run();
+				} finally {
+					activeReports.decrementAndGet();
+					running.set(false);
+				}
+			}
+		};
+		return timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				if (!running.compareAndSet(false, true)) {
+					skippedTicks.incrementAndGet();
+					return;
+				}
+				activeReports.incrementAndGet();
+				try {
+					workers.execute(task);
+				} catch (RejectedExecutionException e) {
+					// stopped
+					activeReports.decrementAndGet();
+					running.set(false);
+				}
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Run report once after delay.
+	 */
+	ScheduledFuture<?> schedule(final Runnable report, long delay, TimeUnit unit) {
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					report.run();
+				} finally {
+					activeReports.decrementAndGet();
+				}
+			}
+		};
+		return timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				activeReports.incrementAndGet();
+				try {
+					workers.execute(task);
+				} catch (RejectedExecutionException e) {
+					// stopped
+					activeReports.decrementAndGet();
+				}
+			}
+		}, delay, unit);
+	}
+
+	/**
+	 * Returns the executor of the blocking sends of all the reporters : the executor of the reports
+	 * when they run on virtual threads, else the bounded pool of send threads.
+	 */
+	ExecutorService sendExecutor() {
+		return sends;
+	}
+
+	/**
+	 * Returns Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(THREAD_NAME + "-", 0).factory()),
+	 * or null before JDK 21.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME + "-", 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newExecutor.invoke(null, factory);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
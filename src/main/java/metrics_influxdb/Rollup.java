@@ -0,0 +1,266 @@
+package metrics_influxdb;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformSnapshot;
+
+/**
+ * The merge, during a report, of the metrics of a type whose names are mapped to the same
+ * name by a {@link Rule}.
+ *
+ * Counts and rates are summed. The snapshots are merged into a {@link UniformSnapshot} of all
+ * the values when they are all uniform (eg of UniformReservoir, SlidingWindowReservoir,
+ * SlidingTimeWindowReservoir), so the quantiles are the ones of the union (exact for the
+ * sliding window reservoirs). Else (eg ExponentiallyDecayingReservoir) size, min and max are
+ * exact, mean and std-dev are pooled, and the quantiles are the max of the quantiles of the
+ * metrics (an upper bound).
+ */
+class Rollup {
+
+	/**
+	 * Map the names of the metrics matching pattern to a rollup name, which can refer
+	 * to the groups of the pattern (eg "$1").
+	 */
+	static final class Rule {
+		final Pattern pattern;
+		final String name;
+		final boolean keepOriginals;
+
+		Rule(Pattern pattern, String name, boolean keepOriginals) {
+			this.pattern = pattern;
+			this.name = name;
+			this.keepOriginals = keepOriginals;
+		}
+
+		/**
+		 * Returns the name of the rollup of the metric, or null if the metric doesn't match.
+		 */
+		String rollupName(String metricName) {
+			Matcher m = pattern.matcher(metricName);
+			if (!m.matches()) {
+				return null;
+			}
+			StringBuffer back = new StringBuffer();
+			m.appendReplacement(back, name);
+			return back.toString();
+		}
+	}
+
+	/**
+	 * The rollup of a metric name : the first rule matching it, the rollup name and the keys of
+	 * the rollup per type (name + suffix of the type), or {@link #NONE}.
+	 */
+	static final class Match {
+		static final Match NONE = new Match(null, null, new String[0]);
+		final Rule rule;
+		final String name;
+		final String[] keys;
+
+		private Match(Rule rule, String name, String[] keys) {
+			this.rule = rule;
+			this.name = name;
+			this.keys = keys;
+		}
+
+		/**
+		 * Returns the match of the first rule matching metricName, NONE if no rule matches.
+		 *
+		 * @param typeSuffixes the suffixes of the types, to build the keys
+		 */
+		static Match of(Rule[] rules, String metricName, String[] typeSuffixes) {
+			for (Rule rule : rules) {
+				String rollupName = rule.rollupName(metricName);
+				if (rollupName == null) {
+					continue;
+				}
+				String[] keys = new String[typeSuffixes.length];
+				for (int i = 0; i < keys.length; i++) {
+					keys[i] = rollupName + typeSuffixes[i];
+				}
+				return new Match(rule, rollupName, keys);
+			}
+			return NONE;
+		}
+	}
+
+	// the index of the rollup in its report
+	final int index;
+	final String name;
+	final int type;
+	final int destination;
+	final InfluxdbReporter.Priority priority;
+	final boolean keepOriginals;
+	// true if a metric changed (or is reported for the first time)
+	boolean active;
+	long count;
+	Double countRate;
+	double oneMinuteRate;
+	double fiveMinuteRate;
+	double fifteenMinuteRate;
+	double meanRate;
+	private final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+
+	Rollup(int index, String name, int type, int destination, InfluxdbReporter.Priority priority, boolean keepOriginals) {
+		this.index = index;
+		this.name = name;
+		this.type = type;
+		this.destination = destination;
+		this.priority = priority;
+		this.keepOriginals = keepOriginals;
+	}
+
+	void addCount(long count, Double countRate, boolean active) {
+		this.count += count;
+		if (countRate != null) {
+			this.countRate = (this.countRate == null) ? countRate : this.countRate + countRate;
+		}
+		this.active |= active;
+	}
+
+	void addRates(Metered metered) {
+		oneMinuteRate += metered.getOneMinuteRate();
+		fiveMinuteRate += metered.getFiveMinuteRate();
+		fifteenMinuteRate += metered.getFifteenMinuteRate();
+		meanRate += metered.getMeanRate();
+	}
+
+	void addSnapshot(Snapshot snapshot) {
+		snapshots.add(snapshot);
+	}
+
+	Snapshot getSnapshot() {
+		boolean uniform = true;
+		int size = 0;
+		for (Snapshot s : snapshots) {
+			uniform &= s instanceof UniformSnapshot;
+			size += s.size();
+		}
+		if (!uniform) {
+			return new PooledSnapshot(snapshots);
+		}
+		long[] values = new long[size];
+		int length = 0;
+		for (Snapshot s : snapshots) {
+			long[] v = s.getValues();
+			System.arraycopy(v, 0, values, length, v.length);
+			length += v.length;
+		}
+		return new UniformSnapshot(values);
+	}
+
+	/**
+	 * The merge of snapshots whose values can't be merged.
+	 */
+	static final class PooledSnapshot extends Snapshot {
+		private final List<Snapshot> snapshots;
+
+		PooledSnapshot(List<Snapshot> snapshots) {
+			this.snapshots = snapshots;
+		}
+
+		/**
+		 * Returns the max of the quantile of the snapshots.
+		 */
+		@Override
+		public double getValue(double quantile) {
+			double back = 0;
+			boolean first = true;
+			for (Snapshot s : snapshots) {
+				if (s.size() > 0 && (first || s.getValue(quantile) > back)) {
+					back = s.getValue(quantile);
+					first = false;
+				}
+			}
+			return back;
+		}
+
+		@Override
+		public long[] getValues() {
+			long[] values = new long[size()];
+			int length = 0;
+			for (Snapshot s : snapshots) {
+				long[] v = s.getValues();
+				System.arraycopy(v, 0, values, length, v.length);
+				length += v.length;
+			}
+			return values;
+		}
+
+		@Override
+		public int size() {
+			int size = 0;
+			for (Snapshot s : snapshots) {
+				size += s.size();
+			}
+			return size;
+		}
+
+		@Override
+		public long getMax() {
+			long back = 0;
+			boolean first = true;
+			for (Snapshot s : snapshots) {
+				if (s.size() > 0 && (first || s.getMax() > back)) {
+					back = s.getMax();
+					first = false;
+				}
+			}
+			return back;
+		}
+
+		@Override
+		public long getMin() {
+			long back = 0;
+			boolean first = true;
+			for (Snapshot s : snapshots) {
+				if (s.size() > 0 && (first || s.getMin() < back)) {
+					back = s.getMin();
+					first = false;
+				}
+			}
+			return back;
+		}
+
+		@Override
+		public double getMean() {
+			double sum = 0;
+			int size = 0;
+			for (Snapshot s : snapshots) {
+				sum += s.getMean() * s.size();
+				size += s.size();
+			}
+			return (size == 0) ? 0 : sum / size;
+		}
+
+		/**
+		 * Returns sqrt(sum(size * (sd^2 + mean^2)) / sum(size) - mean^2).
+		 */
+		@Override
+		public double getStdDev() {
+			double sumSquares = 0;
+			int size = 0;
+			for (Snapshot s : snapshots) {
+				double sd = s.getStdDev();
+				double m = s.getMean();
+				sumSquares += s.size() * (sd * sd + m * m);
+				size += s.size();
+			}
+			if (size == 0) {
+				return 0;
+			}
+			double m = getMean();
+			return Math.sqrt(Math.max(0, sumSquares / size - m * m));
+		}
+
+		@Override
+		public void dump(OutputStream output) {
+			new UniformSnapshot(getValues()).dump(output);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package metrics_influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CardinalityGuardTest {
+
+	@Test
+	public void admitsAtMostMaxMetricsPerCycle() {
+		CardinalityGuard guard = new CardinalityGuard(3, 12);
+		for (int cycle = 0; cycle < 5; cycle++) {
+			guard.beginCycle();
+			int admitted = 0;
+			for (int i = 0; i < 10; i++) {
+				if (guard.admit("metric-" + i, 10)) {
+					admitted++;
+				}
+			}
+			guard.endCycle();
+			assertTrue("cycle " + cycle + " : " + admitted, admitted <= 3);
+			assertEquals(10 - admitted, guard.suppressed());
+		}
+	}
+
+	@Test
+	public void keepsHeavyHittersAgainstTheLongTail() {
+		CardinalityGuard guard = new CardinalityGuard(2, 8);
+		int tail = 0;
+		for (int cycle = 0; cycle < 20; cycle++) {
+			guard.beginCycle();
+			// the tail first, so the heavy hitters are not admitted only by the order of the calls
+			for (int i = 0; i < 50; i++) {
+				boolean admitted = guard.admit("tail-" + tail++, 1);
+				if (cycle > 0) {
+					assertFalse("cycle " + cycle, admitted);
+				}
+			}
+			boolean heavy1 = guard.admit("heavy-1", 1000);
+			boolean heavy2 = guard.admit("heavy-2", 1000);
+			if (cycle > 1) {
+				assertTrue("cycle " + cycle, heavy1 && heavy2);
+			}
+			guard.endCycle();
+		}
+	}
+
+	@Test
+	public void followsTheRecentActivity() {
+		CardinalityGuard guard = new CardinalityGuard(1, 4);
+		boolean admitted = false;
+		for (int cycle = 0; cycle < 40; cycle++) {
+			guard.beginCycle();
+			long oldActivity = (cycle < 10) ? 1000 : 0;
+			long newActivity = (cycle < 10) ? 0 : 100;
+			boolean oldAdmitted = guard.admit("old", oldActivity);
+			admitted = guard.admit("new", newActivity);
+			if (cycle > 1 && cycle < 10) {
+				assertTrue("cycle " + cycle, oldAdmitted);
+				assertFalse("cycle " + cycle, admitted);
+			}
+			guard.endCycle();
+		}
+		assertTrue(admitted);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsCapacityBelowMaxMetrics() {
+		new CardinalityGuard(10, 5);
+	}
+}
@@ -0,0 +1,90 @@
+package metrics_influxdb;
+
+import java.util.Random;
+
+/**
+ * Compare the cost (and the size) of the writing of doubles looking like the values of
+ * InfluxdbReporter (rates, durations in ms, percentiles) by StringBuilder.append(double),
+ * by DoubleToDecimal (shortest round trip) and by DoubleFormat (rounded).
+ *
+ * Usage : DoubleFormatBenchmark [nbValues]
+ */
+public class DoubleFormatBenchmark {
+	// the number of values written per measure
+	private static final int VALUES_PER_MEASURE = 5000000;
+
+	public static void main(String[] args) throws Exception {
+		// the values of a report of a few hundred timers, the builder stays in the cache
+		int nbValues = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+		int iterations = Math.max(1, VALUES_PER_MEASURE / nbValues);
+		Random random = new Random(42);
+		final double[] values = new double[nbValues];
+		for (int i = 0; i < nbValues; i++) {
+			values[i] = random.nextDouble() * Math.pow(10, random.nextInt(7) - 2);
+		}
+		final DoubleFormat decimals = DoubleFormat.decimals(3);
+		final DoubleFormat significant = DoubleFormat.significantDigits(4);
+		Writer[] writers = {
+			new Writer("StringBuilder.append") {
+				@Override
+				void write(StringBuilder sb, double v) {
+					sb.append(v);
+				}
+			},
+			new Writer("DoubleToDecimal") {
+				@Override
+				void write(StringBuilder sb, double v) {
+					DoubleToDecimal.append(sb, v);
+				}
+			},
+			new Writer("DoubleFormat.decimals(3)") {
+				@Override
+				void write(StringBuilder sb, double v) {
+					decimals.append(sb, v);
+				}
+			},
+			new Writer("DoubleFormat.significantDigits(4)") {
+				@Override
+				void write(StringBuilder sb, double v) {
+					significant.append(sb, v);
+				}
+			},
+		};
+		System.out.println(String.format("%-34s %12s %12s %9s", "writer", "ns/value", "chars/value", "speedup"));
+		double baseline = 0;
+		for (Writer writer : writers) {
+			StringBuilder sb = new StringBuilder(nbValues * 24);
+			// warm up
+			for (int i = 0; i < iterations; i++) {
+				writer.writeAll(sb, values);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				writer.writeAll(sb, values);
+			}
+			double nanos = (System.nanoTime() - start) / (double) iterations / nbValues;
+			if (baseline == 0) {
+				baseline = nanos;
+			}
+			System.out.println(String.format("%-34s %12.1f %12.1f %8.1fx", writer.name, nanos, sb.length() / (double) nbValues, baseline / nanos));
+		}
+	}
+
+	private abstract static class Writer {
+		final String name;
+
+		Writer(String name) {
+			this.name = name;
+		}
+
+		abstract void write(StringBuilder sb, double v);
+
+		void writeAll(StringBuilder sb, double[] values) {
+			sb.setLength(0);
+			for (double v : values) {
+				write(sb, v);
+				sb.append(',');
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package metrics_influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DoubleFormatTest {
+	@Test
+	public void roundsToDecimals() {
+		DoubleFormat format = DoubleFormat.decimals(3);
+		assertEquals("12.346", format(format, 12.345678901234567));
+		assertEquals("12", format(format, 12.0000001));
+		assertEquals("-0.05", format(format, -0.05));
+		assertEquals("0.001", format(format, 0.0012));
+		assertEquals("0", format(format, 0.0));
+		assertEquals("1200", format(DoubleFormat.decimals(-2), 1234.5));
+	}
+
+	@Test
+	public void roundsToSignificantDigits() {
+		DoubleFormat format = DoubleFormat.significantDigits(3);
+		assertEquals("12.3", format(format, 12.345678901234567));
+		assertEquals("0.000123", format(format, 0.00012345));
+		assertEquals("1000", format(format, 999.99));
+		assertEquals("4.07E-20", format(format, 4.0678e-20));
+		assertEquals("-1.23E100", format(format, -1.2345e100));
+	}
+
+	@Test
+	public void roundsTheSmallestNormalsAndWritesSubnormalsAsIs() {
+		DoubleFormat format = DoubleFormat.significantDigits(3);
+		assertEquals("4.9E-324", format(format, Double.MIN_VALUE));
+		assertEquals("-1.0E-320", format(format, -1e-320));
+		assertEquals("2.23E-308", format(format, Double.MIN_NORMAL));
+		assertEquals("1.23E-307", format(format, 1.2345e-307));
+	}
+
+	@Test
+	public void writesValuesOutOfTheFastPathWithTheShortestDecimal() {
+		assertEquals("1.2345678901234567E19", format(DoubleFormat.decimals(3), 1.2345678901234567e19));
+		assertEquals("2.0E23", format(DoubleFormat.decimals(0), 2e23));
+	}
+
+	@Test
+	public void roundedValuesAreWithinHalfAUnit() {
+		Random random = new Random(42);
+		DoubleFormat decimals = DoubleFormat.decimals(3);
+		DoubleFormat significant = DoubleFormat.significantDigits(4);
+		for (int i = 0; i < 100000; i++) {
+			double v = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20) - 10);
+			String s = format(decimals, v);
+			assertTrue(s, Math.abs(Double.parseDouble(s) - v) <= 0.0005 + Math.ulp(v));
+			s = format(significant, v);
+			assertTrue(s, Math.abs(Double.parseDouble(s) - v) <= Math.abs(v) * 0.0005 + Math.ulp(v));
+		}
+	}
+
+	@Test
+	public void keepsNaNAndInfinityUnrounded() {
+		assertEquals(Double.NaN, DoubleFormat.decimals(3).round(Double.NaN));
+		assertEquals(Double.POSITIVE_INFINITY, DoubleFormat.decimals(3).round(Double.POSITIVE_INFINITY));
+	}
+
+	private static String format(DoubleFormat format, double v) {
+		return format.round(v).toString();
+	}
+}
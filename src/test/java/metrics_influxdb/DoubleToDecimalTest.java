@@ -0,0 +1,82 @@
+package metrics_influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DoubleToDecimalTest {
+	@Test
+	public void writesInTheFormatOfDoubleToString() {
+		assertEquals("0.0", toString(0.0));
+		assertEquals("-0.0", toString(-0.0));
+		assertEquals("12.0", toString(12.0));
+		assertEquals("-4.35", toString(-4.35));
+		assertEquals("0.001", toString(0.001));
+		assertEquals("1.0E-4", toString(0.0001));
+		assertEquals("9999999.0", toString(9999999.0));
+		assertEquals("1.0E7", toString(1e7));
+		assertEquals("1.23456789E8", toString(123456789.0));
+		assertEquals("0.3333333333333333", toString(1.0 / 3));
+		assertEquals("1.7976931348623157E308", toString(Double.MAX_VALUE));
+		assertEquals("2.2250738585072014E-308", toString(Double.MIN_NORMAL));
+		assertEquals("4.9E-324", toString(Double.MIN_VALUE));
+		assertEquals("NaN", toString(Double.NaN));
+		assertEquals("-Infinity", toString(Double.NEGATIVE_INFINITY));
+	}
+
+	@Test
+	public void writesTheShortestDecimal() {
+		// Double.toString of JDK 8-18 writes 2.0000000000000002E23 and 0.10000000149011612 (for 0.1f)
+		assertEquals("2.0E23", toString(2e23));
+		assertEquals("1.0E23", toString(1e23));
+		assertEquals("0.3", toString(0.3));
+		assertEquals("0.1", toString(0.1f));
+		assertEquals("3.4028235E38", toString(Float.MAX_VALUE));
+		assertEquals("1.4E-45", toString(Float.MIN_VALUE));
+		assertEquals("1.6777216E7", toString(16777216f));
+	}
+
+	@Test
+	public void roundTripsRandomDoubles() {
+		Random random = new Random(42);
+		for (int i = 0; i < 50000; i++) {
+			double v = Double.longBitsToDouble(random.nextLong());
+			if (Double.isNaN(v)) {
+				continue;
+			}
+			String s = toString(v);
+			assertEquals(s, Double.doubleToLongBits(v), Double.doubleToLongBits(Double.parseDouble(s)));
+			// never longer than the (shortest or not) output of Double.toString
+			assertTrue(s, s.length() <= Double.toString(v).length());
+		}
+	}
+
+	@Test
+	public void roundTripsRandomFloats() {
+		Random random = new Random(42);
+		for (int i = 0; i < 50000; i++) {
+			float v = Float.intBitsToFloat(random.nextInt());
+			if (Float.isNaN(v)) {
+				continue;
+			}
+			String s = toString(v);
+			assertEquals(s, Float.floatToIntBits(v), Float.floatToIntBits(Float.parseFloat(s)));
+			assertTrue(s, s.length() <= Float.toString(v).length());
+		}
+	}
+
+	private static String toString(double v) {
+		StringBuilder sb = new StringBuilder();
+		DoubleToDecimal.append(sb, v);
+		return sb.toString();
+	}
+
+	private static String toString(float v) {
+		StringBuilder sb = new StringBuilder();
+		DoubleToDecimal.append(sb, v);
+		return sb.toString();
+	}
+}
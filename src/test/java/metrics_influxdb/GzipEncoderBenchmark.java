@@ -0,0 +1,93 @@
+package metrics_influxdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compare the CPU cost of the compression against the bytes saved, for payloads
+ * looking like the ones of InfluxdbReporter (timers with random values).
+ *
+ * Usage : GzipEncoderBenchmark [nbTimers...]
+ */
+public class GzipEncoderBenchmark {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String[] COLUMNS_TIMER = {
+		"time", "count"
+		, "min", "max", "mean", "std-dev"
+		, "50-percentile", "75-percentile", "95-percentile", "99-percentile", "999-percentile"
+		, "one-minute", "five-minute", "fifteen-minute", "mean-rate"
+		, "run-count"
+	};
+	private static final int ITERATIONS = 200;
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 1, 10, 100, 1000, 5000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		int[] levels = { Deflater.BEST_SPEED, 3, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION };
+		System.out.println(String.format("%8s %6s %12s %12s %7s %14s %14s", "timers", "level", "plain(B)", "gzip(B)", "ratio", "encode(us)", "us/KB saved"));
+		for (int size : sizes) {
+			byte[] payload = payload(size);
+			for (int level : levels) {
+				GzipEncoder encoder = new GzipEncoder(level);
+				check(encoder, payload);
+				// warm up
+				for (int i = 0; i < ITERATIONS; i++) {
+					encoder.encode(payload, payload.length);
+				}
+				long start = System.nanoTime();
+				for (int i = 0; i < ITERATIONS; i++) {
+					encoder.encode(payload, payload.length);
+				}
+				double micros = (System.nanoTime() - start) / 1000.0 / ITERATIONS;
+				int saved = payload.length - encoder.length();
+				System.out.println(String.format("%8d %6d %12d %12d %6.1fx %14.1f %14.2f"
+					, size, level, payload.length, encoder.length()
+					, payload.length / (double) encoder.length(), micros
+					, saved > 0 ? micros * 1024 / saved : Double.NaN
+				));
+				encoder.end();
+			}
+		}
+	}
+
+	private static byte[] payload(int nbTimers) {
+		Random random = new Random(42);
+		JsonBuilderDefault builder = new JsonBuilderDefault();
+		builder.reset();
+		Object[][] points = { new Object[COLUMNS_TIMER.length] };
+		for (int i = 0; i < nbTimers; i++) {
+			Object[] p = points[0];
+			p[0] = System.currentTimeMillis();
+			p[1] = 1028;
+			for (int j = 2; j < p.length - 1; j++) {
+				p[j] = random.nextDouble() * 100.0;
+			}
+			p[p.length - 1] = (long) random.nextInt(100000);
+			builder.appendSeries("bench.", "service.request-" + i, ".timer", COLUMNS_TIMER, points);
+		}
+		return builder.toJsonString().getBytes(UTF_8);
+	}
+
+	private static void check(GzipEncoder encoder, byte[] payload) throws Exception {
+		encoder.encode(payload, payload.length);
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(encoder.buffer(), 0, encoder.length()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+			out.write(buf, 0, n);
+		}
+		if (!Arrays.equals(payload, out.toByteArray())) {
+			throw new IllegalStateException("gzip round trip failed for level " + encoder.level());
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package metrics_influxdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class GzipEncoderTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Test
+	public void encodesGzipAtEveryLevel() throws Exception {
+		byte[] payload = payload(2000);
+		for (int level = Deflater.BEST_SPEED; level <= Deflater.BEST_COMPRESSION; level++) {
+			GzipEncoder encoder = new GzipEncoder(level);
+			encoder.encode(payload, payload.length);
+			assertArrayEquals("level " + level, payload, decode(encoder));
+			assertTrue("level " + level, encoder.length() < payload.length / 2);
+			encoder.end();
+		}
+	}
+
+	@Test
+	public void reusesEncoderForPayloadsOfAnySize() throws Exception {
+		GzipEncoder encoder = new GzipEncoder(Deflater.BEST_SPEED);
+		for (int size : new int[]{ 10, 5000, 0, 1, 300 }) {
+			byte[] payload = payload(size);
+			encoder.encode(payload, payload.length);
+			assertArrayEquals("size " + size, payload, decode(encoder));
+		}
+		encoder.setLevel(Deflater.BEST_COMPRESSION);
+		byte[] payload = payload(100);
+		encoder.encode(payload, payload.length);
+		assertArrayEquals(payload, decode(encoder));
+		encoder.end();
+	}
+
+	@Test
+	public void encodesIncompressiblePayload() throws Exception {
+		byte[] payload = new byte[100000];
+		new Random(7).nextBytes(payload);
+		GzipEncoder encoder = new GzipEncoder(Deflater.BEST_SPEED);
+		encoder.encode(payload, payload.length);
+		assertArrayEquals(payload, decode(encoder));
+		encoder.end();
+	}
+
+	@Test
+	public void encodesPooledPayload() throws Exception {
+		BufferPool pool = new BufferPool(1024 * 1024, 512);
+		String text = new String(payload(300), UTF_8) + " \u00e9\u20ac";
+		GzipEncoder encoder = new GzipEncoder(Deflater.BEST_SPEED);
+		encoder.begin();
+		PooledPayload payload = new PooledPayload(pool, encoder.input());
+		payload.append(text);
+		payload.finish();
+		payload.release();
+		encoder.finish();
+		assertArrayEquals(text.getBytes(UTF_8), decode(encoder));
+		assertEquals(512, pool.getAllocatedBytes());
+		encoder.end();
+	}
+
+	private static byte[] payload(int nbLines) {
+		StringBuilder sb = new StringBuilder();
+		Random random = new Random(42);
+		for (int i = 0; i < nbLines; i++) {
+			sb.append("test.metric-").append(i).append(".timer count=").append(random.nextInt(1000))
+				.append("i,mean=").append(random.nextDouble() * 100).append(" 1400000000000\n");
+		}
+		return sb.toString().getBytes(UTF_8);
+	}
+
+	private static byte[] decode(GzipEncoder encoder) throws IOException {
+		byte[] encoded = Arrays.copyOf(encoder.buffer(), encoder.length());
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(encoded));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,65 @@
+package metrics_influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.junit.Test;
+
+public class InfluxdbAgentTest {
+	private static final SocketAddress SENDER_1 = new InetSocketAddress("127.0.0.1", 40001);
+	private static final SocketAddress SENDER_2 = new InetSocketAddress("127.0.0.1", 40002);
+
+	@Test
+	public void mergesTheLastPointOfEverySender() {
+		RecordingInfluxdb influxdb = new RecordingInfluxdb(0);
+		InfluxdbAgent agent = new InfluxdbAgent(0, influxdb);
+		agent.merge(SENDER_1, counter(1, 10), 1000);
+		agent.merge(SENDER_1, counter(2, 12), 1000);
+		agent.merge(SENDER_2, counter(1, 5), 1000);
+
+		agent.forward(2000);
+
+		assertEquals(1, influxdb.requests.size());
+		assertEquals("[{\"name\":\"c.count\",\"columns\":[\"time\",\"count\"],\"points\":[[2000,17]]}]", influxdb.requests.get(0));
+	}
+
+	@Test
+	public void keepsThePointsOfTheSendersAcrossForwards() {
+		RecordingInfluxdb influxdb = new RecordingInfluxdb(0);
+		InfluxdbAgent agent = new InfluxdbAgent(0, influxdb);
+		agent.senderTimeout = 10000;
+		agent.merge(SENDER_1, counter(1, 10), 1000);
+		agent.merge(SENDER_2, counter(1, 5), 1000);
+		agent.forward(2000);
+		// sender 2 reports less often than the agent forwards
+		agent.merge(SENDER_1, counter(2, 11), 2500);
+		agent.forward(3000);
+
+		assertEquals(2, influxdb.requests.size());
+		assertTrue(influxdb.requests.get(0), influxdb.requests.get(0).contains("[[2000,15]]"));
+		assertTrue(influxdb.requests.get(1), influxdb.requests.get(1).contains("[[3000,16]]"));
+	}
+
+	@Test
+	public void forgetsTheSilentSenders() {
+		RecordingInfluxdb influxdb = new RecordingInfluxdb(0);
+		InfluxdbAgent agent = new InfluxdbAgent(0, influxdb);
+		agent.senderTimeout = 10000;
+		agent.merge(SENDER_1, counter(1, 10), 1000);
+		agent.merge(SENDER_2, counter(1, 5), 1000);
+		agent.merge(SENDER_1, counter(2, 11), 9000);
+		agent.forward(12000);
+		// all the senders are silent : nothing to forward
+		agent.forward(20000);
+
+		assertEquals(1, influxdb.requests.size());
+		assertTrue(influxdb.requests.get(0), influxdb.requests.get(0).contains("[[12000,11]]"));
+	}
+
+	private static Object counter(long time, long count) {
+		return JsonParser.parse("[{\"name\":\"c.count\",\"columns\":[\"time\",\"count\"],\"points\":[[" + time + "," + count + "]]}]");
+	}
+}
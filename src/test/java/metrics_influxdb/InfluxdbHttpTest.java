@@ -0,0 +1,160 @@
+package metrics_influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sandbox.FakeInfluxDB;
+
+public class InfluxdbHttpTest {
+	private static final String[] COLUMNS = { "time", "count", "value" };
+
+	private FakeInfluxDB server;
+
+	@Before
+	public void startServer() throws Exception {
+		server = new FakeInfluxDB().start();
+	}
+
+	@After
+	public void stopServer() throws Exception {
+		server.stop();
+	}
+
+	@Test
+	public void sendsJsonSeriesToVersion08() throws Exception {
+		InfluxdbHttp influxdb = newInfluxdb();
+		assertEquals(false, influxdb.isLineProtocol());
+
+		send(influxdb, 10, 2);
+
+		assertEquals(1, server.requests.get());
+		assertEquals(10, server.series.get());
+		assertEquals(20, server.points.get());
+	}
+
+	@Test
+	public void sendsCompressedLineProtocolToVersion1() throws Exception {
+		server.version = "1.8.0";
+		InfluxdbHttp influxdb = newInfluxdb();
+		influxdb.compressionThreshold = 0;
+		assertTrue(influxdb.isLineProtocol());
+
+		int plainSize = send(influxdb, 100, 1);
+
+		assertEquals(1, server.requests.get());
+		assertEquals(100, server.points.get());
+		assertTrue("gzip should shrink " + plainSize + " chars to less than half : " + server.bytes, server.bytes.get() * 2 < plainSize);
+	}
+
+	@Test
+	public void splitsRequestInChunksOfSeries() throws Exception {
+		InfluxdbHttp influxdb = newInfluxdb();
+		influxdb.maxChunkSeries = 3;
+
+		send(influxdb, 10, 1);
+
+		assertEquals(4, server.requests.get());
+		assertEquals(10, server.series.get());
+		assertEquals(10, server.points.get());
+	}
+
+	@Test
+	public void splitsRequestInChunksOfSize() throws Exception {
+		InfluxdbHttp influxdb = newInfluxdb();
+		influxdb.chunkParallelism = 4;
+		JsonBuilder request = request(influxdb, 40, 1);
+		int seriesSize = request.seriesSize(0) + 1;
+		influxdb.maxChunkSize = seriesSize * 10;
+
+		assertEquals(200, influxdb.sendRequest(request, true, false));
+
+		assertEquals(4, server.requests.get());
+		assertEquals(40, server.points.get());
+	}
+
+	@Test
+	public void retriesTheChunksOnServerErrorsThenFails() throws Exception {
+		server.errorRate = 1;
+		InfluxdbHttp influxdb = newInfluxdb();
+		influxdb.maxChunkSeries = 1;
+		influxdb.chunkRetries = 2;
+
+		try {
+			send(influxdb, 2, 1);
+			fail("the send should fail");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("500"));
+		}
+		assertEquals(6, server.requests.get());
+		assertEquals(0, server.points.get());
+	}
+
+	@Test
+	public void sendsARequestNotSplitOnce() throws Exception {
+		server.errorRate = 1;
+		InfluxdbHttp influxdb = newInfluxdb();
+		influxdb.chunkRetries = 2;
+
+		try {
+			send(influxdb, 1, 1);
+			fail("the send should fail");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("500"));
+		}
+		assertEquals(1, server.requests.get());
+	}
+
+	@Test
+	public void probesTheVersionOnTheFirstRequest() throws Exception {
+		InfluxdbHttp influxdb = new InfluxdbHttp("127.0.0.1", server.httpPort(), "test", "u", "p");
+		Thread.sleep(200);
+		assertEquals(null, influxdb.getServerVersion());
+
+		influxdb.newRequest();
+		for (int i = 0; i < 100 && influxdb.getServerVersion() == null; i++) {
+			Thread.sleep(50);
+		}
+		assertTrue("the version should be probed", influxdb.getServerVersion() != null);
+	}
+
+	private InfluxdbHttp newInfluxdb() throws Exception {
+		InfluxdbHttp influxdb = new InfluxdbHttp("127.0.0.1", server.httpPort(), "test", "u", "p");
+		// wait for the probe started by the first request
+		influxdb.newRequest();
+		for (int i = 0; i < 100 && influxdb.getServerVersion() == null; i++) {
+			Thread.sleep(50);
+		}
+		assertTrue("the version should be probed", influxdb.getServerVersion() != null);
+		return influxdb;
+	}
+
+	private static JsonBuilder request(InfluxdbHttp influxdb, int nbSeries, int nbPoints) {
+		JsonBuilder request = influxdb.newRequest();
+		for (int i = 0; i < nbSeries; i++) {
+			Object[][] points = new Object[nbPoints][];
+			for (int p = 0; p < nbPoints; p++) {
+				points[p] = new Object[]{ 1400000000000L + p, 42L, 1.5 };
+			}
+			// all the series have the same size
+			request.appendSeries("test.", String.format("metric-%04d", i), ".value", COLUMNS, points);
+		}
+		return request;
+	}
+
+	/**
+	 * Returns the size of the request sent.
+	 */
+	private static int send(InfluxdbHttp influxdb, int nbSeries, int nbPoints) throws Exception {
+		JsonBuilder request = request(influxdb, nbSeries, nbPoints);
+		int size = request.toJsonString().length();
+		assertEquals(200, influxdb.sendRequest(request, true, false));
+		return size;
+	}
+}
@@ -0,0 +1,118 @@
+package metrics_influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sandbox.FakeInfluxDB;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Report every type of metric to a {@link FakeInfluxDB} through every transport, and check
+ * that no point is lost and that the reports keep a minimal throughput.
+ */
+public class InfluxdbReporterLoadTest {
+	private static final int NB_METRICS = 200;
+	private static final int NB_REPORTS = 20;
+	private static final int POINTS_PER_REPORT = NB_METRICS * 5;
+	// far below what a laptop does (x100), only a collapse of the throughput should fail
+	private static final double MIN_POINTS_PER_SECOND = 5000;
+
+	private FakeInfluxDB server;
+	private MetricRegistry registry;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeInfluxDB().start();
+		registry = new MetricRegistry();
+		for (int i = 0; i < NB_METRICS; i++) {
+			final int id = i;
+			registry.register(MetricRegistry.name("gauge", String.valueOf(i)), new Gauge<Integer>() {
+				@Override
+				public Integer getValue() {
+					return id;
+				}
+			});
+			registry.counter(MetricRegistry.name("counter", String.valueOf(i))).inc(i);
+			registry.histogram(MetricRegistry.name("histogram", String.valueOf(i))).update(i);
+			registry.meter(MetricRegistry.name("meter", String.valueOf(i))).mark(i);
+			registry.timer(MetricRegistry.name("timer", String.valueOf(i))).update(i, TimeUnit.MICROSECONDS);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.stop();
+	}
+
+	@Test(timeout = 60000)
+	public void reportsJsonOverHttp() throws Exception {
+		InfluxdbHttp influxdb = new InfluxdbHttp("127.0.0.1", server.httpPort(), "load", "u", "p");
+		awaitProbe(influxdb);
+		assertEquals(false, influxdb.isLineProtocol());
+		check(newReporter(influxdb));
+	}
+
+	@Test(timeout = 60000)
+	public void reportsLineProtocolOverHttp() throws Exception {
+		server.version = "1.8.0";
+		InfluxdbHttp influxdb = new InfluxdbHttp("127.0.0.1", server.httpPort(), "load", "u", "p");
+		awaitProbe(influxdb);
+		assertTrue(influxdb.isLineProtocol());
+		check(newReporter(influxdb));
+	}
+
+	@Test(timeout = 60000)
+	public void reportsJsonOverUdp() throws Exception {
+		InfluxdbUdp influxdb = new InfluxdbUdp("127.0.0.1", server.udpPort());
+		try {
+			check(newReporter(influxdb));
+		} finally {
+			influxdb.close();
+		}
+	}
+
+	private InfluxdbReporter newReporter(Influxdb influxdb) {
+		return InfluxdbReporter
+			.forRegistry(registry)
+			.prefixedWith("load")
+			.convertRatesTo(TimeUnit.SECONDS)
+			.convertDurationsTo(TimeUnit.MILLISECONDS)
+			.filter(MetricFilter.ALL)
+			.build(influxdb);
+	}
+
+	private void check(InfluxdbReporter reporter) throws Exception {
+		long expected = (long) NB_REPORTS * POINTS_PER_REPORT;
+		long start = System.nanoTime();
+		for (int i = 0; i < NB_REPORTS; i++) {
+			reporter.report();
+		}
+		// the datagrams are received asynchronously
+		for (int i = 0; i < 100 && server.points.get() < expected; i++) {
+			Thread.sleep(50);
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		reporter.stop();
+
+		assertEquals(server.toString(), 0, server.errors.get());
+		assertEquals(server.toString(), expected, server.points.get());
+		double throughput = expected / elapsed;
+		assertTrue("throughput of " + (long) throughput + " points/s", throughput >= MIN_POINTS_PER_SECOND);
+	}
+
+	private static void awaitProbe(InfluxdbHttp influxdb) throws InterruptedException {
+		influxdb.newRequest();
+		for (int i = 0; i < 100 && influxdb.getServerVersion() == null; i++) {
+			Thread.sleep(50);
+		}
+	}
+}
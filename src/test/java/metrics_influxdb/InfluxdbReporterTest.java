@@ -0,0 +1,392 @@
+package metrics_influxdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+
+public class InfluxdbReporterTest {
+	private static final Pattern INTERVAL = Pattern.compile("interval\\.value\",\"columns\":\\[\"time\",\"value\"\\],\"points\":\\[\\[\\d+,(\\d+)\\]\\]");
+	private static final MetricFilter DEBUG = new MetricFilter() {
+		@Override
+		public boolean matches(String name, Metric metric) {
+			return name.startsWith("debug.");
+		}
+	};
+
+	@Test
+	public void routedSendsDontStretchTheAdaptiveInterval() throws Exception {
+		MetricRegistry registry = new MetricRegistry();
+		registry.counter("requests").inc();
+		registry.counter("debug.requests").inc();
+		RecordingInfluxdb main = new RecordingInfluxdb(50);
+		RecordingInfluxdb debug = new RecordingInfluxdb(50);
+		InfluxdbReporter reporter = InfluxdbReporter.forRegistry(registry)
+			.adaptInterval(1, TimeUnit.MINUTES)
+			.routeTo(DEBUG, debug)
+			.build(main);
+		// sets the nominal period, the first scheduled report is far after the manual ones
+		reporter.start(10, TimeUnit.SECONDS);
+		try {
+			for (int i = 0; i < 3; i++) {
+				reporter.report();
+			}
+		} finally {
+			reporter.stop();
+		}
+
+		assertEquals(3, main.requests.size());
+		assertEquals(3, debug.requests.size());
+		for (String request : main.requests) {
+			assertEquals(request, TimeUnit.SECONDS.toMillis(10), interval(request));
+		}
+	}
+
+	@Test
+	public void hungServerDoesntStarveTheOtherReportersOfAScheduler() throws Exception {
+		MetricRegistry registry = new MetricRegistry();
+		registry.counter("requests").inc();
+		final CountDownLatch hung = new CountDownLatch(1);
+		RecordingInfluxdb hungServer = new RecordingInfluxdb(0) {
+			@Override
+			public int sendRequest(JsonBuilder request, boolean throwExc, boolean printJson) throws Exception {
+				hung.await();
+				return 0;
+			}
+		};
+		RecordingInfluxdb server = new RecordingInfluxdb(0);
+		ReportScheduler scheduler = new ReportScheduler(1, false);
+		InfluxdbReporter hungReporter = InfluxdbReporter.forRegistry(registry).scheduleOn(scheduler).build(hungServer);
+		InfluxdbReporter reporter = InfluxdbReporter.forRegistry(registry).scheduleOn(scheduler).build(server);
+		hungReporter.start(50, TimeUnit.MILLISECONDS);
+		reporter.start(50, TimeUnit.MILLISECONDS);
+		try {
+			Thread.sleep(1000);
+			assertTrue(server.requests.size() >= 5);
+		} finally {
+			hung.countDown();
+			hungReporter.stop();
+			reporter.stop();
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void reportersOfASchedulerShareABoundedNumberOfSendThreads() throws Exception {
+		MetricRegistry registry = new MetricRegistry();
+		registry.counter("requests").inc();
+		ReportScheduler scheduler = new ReportScheduler(2, 4, false);
+		List<RecordingInfluxdb> servers = new ArrayList<RecordingInfluxdb>();
+		List<InfluxdbReporter> reporters = new ArrayList<InfluxdbReporter>();
+		for (int i = 0; i < 50; i++) {
+			RecordingInfluxdb server = new RecordingInfluxdb(20);
+			servers.add(server);
+			reporters.add(InfluxdbReporter.forRegistry(registry).scheduleOn(scheduler).build(server));
+		}
+		int maxThreads = 0;
+		try {
+			for (InfluxdbReporter reporter : reporters) {
+				reporter.start(50, TimeUnit.MILLISECONDS);
+			}
+			for (int i = 0; i < 20; i++) {
+				Thread.sleep(100);
+				maxThreads = Math.max(maxThreads, reporterThreads());
+			}
+		} finally {
+			for (InfluxdbReporter reporter : reporters) {
+				reporter.stop();
+			}
+			scheduler.shutdown();
+		}
+		// the timer, 2 report threads and 4 send threads
+		assertTrue(maxThreads + " threads", maxThreads <= 7);
+		for (RecordingInfluxdb server : servers) {
+			assertFalse("every reporter should send", server.requests.isEmpty());
+		}
+	}
+
+	private static int reporterThreads() {
+		int n = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.isAlive() && t.getName().startsWith("influxdb-reporter")) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	@Test
+	public void reportersOfABuilderDontShareTheirCardinalityGuard() throws Exception {
+		InfluxdbReporter.Builder builder = InfluxdbReporter.forRegistry(new MetricRegistry()).limitCardinality(1);
+		MetricRegistry registryA = new MetricRegistry();
+		registryA.counter("a").inc(1000);
+		RecordingInfluxdb influxdbA = new RecordingInfluxdb(0);
+		InfluxdbReporter reporterA = builder.build(influxdbA);
+		MetricRegistry registryB = new MetricRegistry();
+		registryB.counter("b").inc();
+		RecordingInfluxdb influxdbB = new RecordingInfluxdb(0);
+		InfluxdbReporter reporterB = builder.build(influxdbB);
+
+		for (int i = 0; i < 3; i++) {
+			registryA.counter("a").inc(1000);
+			reporterA.report(registryA.getGauges(MetricFilter.ALL), registryA.getCounters(MetricFilter.ALL), registryA.getHistograms(MetricFilter.ALL), registryA.getMeters(MetricFilter.ALL), registryA.getTimers(MetricFilter.ALL));
+		}
+		reporterB.report(registryB.getGauges(MetricFilter.ALL), registryB.getCounters(MetricFilter.ALL), registryB.getHistograms(MetricFilter.ALL), registryB.getMeters(MetricFilter.ALL), registryB.getTimers(MetricFilter.ALL));
+
+		String request = influxdbB.requests.get(0);
+		assertTrue(request, request.contains("\"b.count\""));
+		assertFalse(request, request.contains(".other."));
+	}
+
+	@Test
+	public void rollupsFollowTheMetricsOfTheRegistry() throws Exception {
+		MetricRegistry registry = new MetricRegistry();
+		registry.counter("db.shard-1.queries").inc(2);
+		registry.counter("db.shard-2.queries").inc(3);
+		registry.counter("db.connections").inc(7);
+		RecordingInfluxdb influxdb = new RecordingInfluxdb(0);
+		InfluxdbReporter reporter = InfluxdbReporter.forRegistry(registry)
+			.rollup(Pattern.compile("db\\.shard-\\d+\\.(.*)"), "db.all-shards.$1", false)
+			.build(influxdb);
+
+		reporter.report();
+		registry.remove("db.shard-2.queries");
+		registry.counter("db.shard-3.queries").inc(10);
+		reporter.report();
+
+		assertEquals(2, influxdb.requests.size());
+		for (String request : influxdb.requests) {
+			assertFalse(request, request.contains("shard-"));
+			assertTrue(request, request.contains("{\"name\":\"db.connections.count\",\"columns\":[\"time\",\"count\"],\"points\":[["));
+		}
+		assertTrue(influxdb.requests.get(0), influxdb.requests.get(0).matches(".*\"db.all-shards.queries.count\".*\\[\\[\\d+,5\\]\\].*"));
+		assertTrue(influxdb.requests.get(1), influxdb.requests.get(1).matches(".*\"db.all-shards.queries.count\".*\\[\\[\\d+,12\\]\\].*"));
+	}
+
+	@Test
+	public void convertsCountsToDeltasFromTheFirstReport() throws Exception {
+		MetricRegistry registry = new MetricRegistry();
+		Counter counter = registry.counter("requests");
+		RecordingInfluxdb influxdb = new RecordingInfluxdb(0);
+		InfluxdbReporter reporter = InfluxdbReporter.forRegistry(registry).convertCountsToDeltas(true).build(influxdb);
+
+		counter.inc(5);
+		reporter.report();
+		counter.inc(3);
+		reporter.report();
+		reporter.report();
+		// a Counter can be decremented : a lower count is a negative increment, not a reset
+		counter.dec(4);
+		reporter.report();
+
+		assertEquals(4, influxdb.requests.size());
+		assertEquals("5", point(influxdb.requests.get(0), "requests.count")[1]);
+		assertEquals("3", point(influxdb.requests.get(1), "requests.count")[1]);
+		assertEquals("0", point(influxdb.requests.get(2), "requests.count")[1]);
+		assertEquals("-4", point(influxdb.requests.get(3), "requests.count")[1]);
+	}
+
+	@Test
+	public void includesTheIncrementsOfAShedSeriesInTheNextReport() throws Exception {
+		MetricRegistry registry = new MetricRegistry();
+		final String critical = "critical-" + new String(new char[120]).replace('\0', 'x');
+		registry.counter(critical).inc();
+		Counter counter = registry.counter("requests");
+		RecordingInfluxdb influxdb = new RecordingInfluxdb(0);
+		InfluxdbReporter reporter = InfluxdbReporter.forRegistry(registry)
+			.convertCountsToDeltas(true)
+			.priority(new MetricFilter() {
+				@Override
+				public boolean matches(String name, Metric metric) {
+					return name.equals(critical);
+				}
+			}, InfluxdbReporter.Priority.CRITICAL)
+			.sendBudget(100, 0, TimeUnit.SECONDS)
+			.build(influxdb);
+
+		counter.inc(5);
+		reporter.report();
+		// the request is within the budget without the critical series
+		registry.remove(critical);
+		counter.inc(2);
+		reporter.report();
+
+		assertEquals(2, influxdb.requests.size());
+		assertFalse(influxdb.requests.get(0), influxdb.requests.get(0).contains("\"requests.count\""));
+		assertEquals(1, reporter.getShedSeries(InfluxdbReporter.Priority.NORMAL));
+		assertEquals("7", point(influxdb.requests.get(1), "requests.count")[1]);
+	}
+
+	@Test
+	public void countsAMonotonicCountGoingBackwardFromZero() throws Exception {
+		MetricRegistry registry = new MetricRegistry();
+		final AtomicLong count = new AtomicLong(10);
+		registry.register("events", new Meter() {
+			@Override
+			public long getCount() {
+				return count.get();
+			}
+		});
+		RecordingInfluxdb influxdb = new RecordingInfluxdb(0);
+		InfluxdbReporter reporter = InfluxdbReporter.forRegistry(registry).convertCountsToDeltas(true).build(influxdb);
+
+		reporter.report();
+		count.set(15);
+		reporter.report();
+		// reset
+		count.set(4);
+		reporter.report();
+
+		assertEquals("10", point(influxdb.requests.get(0), "events.meter")[1]);
+		assertEquals("5", point(influxdb.requests.get(1), "events.meter")[1]);
+		assertEquals("4", point(influxdb.requests.get(2), "events.meter")[1]);
+	}
+
+	@Test
+	public void reportsCountRatesSinceThePreviousReport() throws Exception {
+		MetricRegistry registry = new MetricRegistry();
+		Counter counter = registry.counter("requests");
+		ManualClock clock = new ManualClock();
+		RecordingInfluxdb influxdb = new RecordingInfluxdb(0);
+		InfluxdbReporter reporter = InfluxdbReporter.forRegistry(registry).withClock(clock).reportCountRates(true).build(influxdb);
+
+		counter.inc(5);
+		reporter.report();
+		counter.inc(20);
+		clock.time += 10000;
+		reporter.report();
+		clock.time += 5000;
+		reporter.report();
+
+		// cumulative counts, the rate (per second) is unknown on the first report
+		assertArrayEquals(new String[]{"1000000", "5", "null"}, point(influxdb.requests.get(0), "requests.count"));
+		assertArrayEquals(new String[]{"1010000", "25", "2.0"}, point(influxdb.requests.get(1), "requests.count"));
+		assertArrayEquals(new String[]{"1015000", "25", "0.0"}, point(influxdb.requests.get(2), "requests.count"));
+	}
+
+	@Test
+	public void includesTheIncrementsOfAFailedSendInTheNextReport() throws Exception {
+		MetricRegistry registry = new MetricRegistry();
+		Counter counter = registry.counter("requests");
+		ManualClock clock = new ManualClock();
+		RecordingInfluxdb influxdb = new RecordingInfluxdb(0);
+		InfluxdbReporter reporter = InfluxdbReporter.forRegistry(registry).withClock(clock)
+			.convertCountsToDeltas(true).reportCountRates(true).build(influxdb);
+
+		counter.inc(5);
+		reporter.report();
+		counter.inc(10);
+		clock.time += 10000;
+		influxdb.failing = true;
+		reporter.report();
+		influxdb.failing = false;
+		counter.inc(20);
+		clock.time += 10000;
+		reporter.report();
+
+		assertEquals(2, influxdb.requests.size());
+		// the rate covers the 20 seconds since the last report sent
+		assertArrayEquals(new String[]{"1020000", "30", "1.5"}, point(influxdb.requests.get(1), "requests.count"));
+	}
+
+	@Test
+	public void concurrentReportsNeitherLoseNorDoubleCountTheDeltas() throws Exception {
+		MetricRegistry registry = new MetricRegistry();
+		// slow to read and to send, so the reports overlap
+		final Counter counter = registry.register("requests", new Counter() {
+			@Override
+			public long getCount() {
+				long count = super.getCount();
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return count;
+			}
+		});
+		RecordingInfluxdb influxdb = new RecordingInfluxdb(20);
+		final InfluxdbReporter reporter = InfluxdbReporter.forRegistry(registry).convertCountsToDeltas(true).build(influxdb);
+		int nbThreads = 4;
+		final int nbReports = 25;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+		List<Future<?>> reports = new ArrayList<Future<?>>();
+		for (int t = 0; t < nbThreads; t++) {
+			reports.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					for (int i = 0; i < nbReports; i++) {
+						counter.inc(3);
+						reporter.report();
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<?> f : reports) {
+			f.get();
+		}
+		executor.shutdown();
+		reporter.report();
+
+		long sum = 0;
+		for (String request : influxdb.requests) {
+			sum += Long.parseLong(point(request, "requests.count")[1]);
+		}
+		assertEquals(nbThreads * nbReports + 1, influxdb.requests.size());
+		assertEquals(counter.getCount(), sum);
+	}
+
+	private static long interval(String request) {
+		Matcher m = INTERVAL.matcher(request);
+		assertTrue(request, m.find());
+		return Long.parseLong(m.group(1));
+	}
+
+	/**
+	 * Returns the values of the first point of the series name of request.
+	 */
+	private static String[] point(String request, String name) {
+		Matcher m = Pattern.compile("\\{\"name\":\"" + Pattern.quote(name) + "\",\"columns\":\\[[^\\]]*\\],\"points\":\\[\\[([^\\]]*)\\]").matcher(request);
+		assertTrue(request, m.find());
+		return m.group(1).split(",");
+	}
+
+	private static class ManualClock extends Clock {
+		long time = 1000000;
+
+		@Override
+		public long getTick() {
+			return TimeUnit.MILLISECONDS.toNanos(time);
+		}
+
+		@Override
+		public long getTime() {
+			return time;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package metrics_influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InfluxdbTcpTest {
+	private static final String[] COLUMNS = { "time", "value" };
+
+	private ServerSocket server;
+
+	@Before
+	public void startServer() throws IOException {
+		server = new ServerSocket();
+		// small, so the client buffers early when the server doesn't read
+		server.setReceiveBufferSize(4096);
+		server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		server.setSoTimeout(5000);
+	}
+
+	@After
+	public void stopServer() throws IOException {
+		server.close();
+	}
+
+	@Test
+	public void streamsLines() throws Exception {
+		InfluxdbTcp influxdb = new InfluxdbTcp("127.0.0.1", server.getLocalPort(), TimeUnit.MILLISECONDS);
+		try {
+			assertEquals(0, influxdb.sendRequest(request(influxdb, 3, 0), true, false));
+			Socket socket = server.accept();
+			BufferedReader in = reader(socket);
+			for (int i = 0; i < 3; i++) {
+				assertTrue(in.readLine().startsWith("test.metric-" + i + ".value "));
+			}
+			socket.close();
+		} finally {
+			influxdb.close();
+		}
+	}
+
+	@Test
+	public void rejectsRequestOnFullBufferWithoutDisconnecting() throws Exception {
+		InfluxdbTcp influxdb = new InfluxdbTcp("127.0.0.1", server.getLocalPort(), TimeUnit.MILLISECONDS);
+		influxdb.writeTimeout = 10;
+		influxdb.maxBufferSize = 1024 * 1024;
+		try {
+			JsonBuilder request = request(influxdb, 1000, 0);
+			int requestSize = request.toJsonString().length();
+			int nbSent = 0;
+			// the server doesn't read until the socket buffers are full
+			while (influxdb.pendingBytes() == 0) {
+				influxdb.sendRequest(request, true, false);
+				nbSent++;
+			}
+			Socket socket = server.accept();
+			while (influxdb.pendingBytes() + requestSize <= influxdb.maxBufferSize) {
+				influxdb.sendRequest(request, true, false);
+				nbSent++;
+			}
+			try {
+				influxdb.sendRequest(request, true, false);
+				fail("the request should be rejected");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("write buffer full"));
+			}
+
+			// the buffered data are written on the same connection
+			influxdb.writeTimeout = 5000;
+			final BufferedReader in = reader(socket);
+			final int expectedLines = nbSent * 1000;
+			final int[] nbLines = new int[1];
+			Thread readerThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (nbLines[0] < expectedLines && in.readLine() != null) {
+							nbLines[0]++;
+						}
+					} catch (IOException e) {
+						// counted as missing lines
+					}
+				}
+			});
+			readerThread.start();
+			assertEquals(0, influxdb.sendRequest(request(influxdb, 0, 0), true, false));
+			readerThread.join(10000);
+			assertEquals(expectedLines, nbLines[0]);
+			server.setSoTimeout(100);
+			try {
+				server.accept().close();
+				fail("the client should not have reconnected");
+			} catch (IOException e) {
+				// expected timeout
+			}
+			socket.close();
+		} finally {
+			influxdb.close();
+		}
+	}
+
+	@Test
+	public void resolvesHostOnConnect() throws Exception {
+		InfluxdbTcp influxdb = new InfluxdbTcp("unknown-host.invalid", 8094);
+		influxdb.reconnectDelay = 0;
+		JsonBuilder request = request(influxdb, 1, 0);
+		try {
+			influxdb.sendRequest(request, true, false);
+			fail("the host should not be resolved");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("unknown-host.invalid"));
+		}
+		assertEquals(request.toJsonString().length(), influxdb.sendRequest(request, false, false) / 2);
+		influxdb.close();
+	}
+
+	private static JsonBuilder request(InfluxdbTcp influxdb, int nbSeries, long time) {
+		JsonBuilder request = influxdb.newRequest();
+		for (int i = 0; i < nbSeries; i++) {
+			request.appendSeries("test.", "metric-" + i, ".value", COLUMNS, new Object[][]{ { time, 1.5 } });
+		}
+		return request;
+	}
+
+	private static BufferedReader reader(Socket socket) throws IOException {
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.forName("UTF-8")));
+	}
+}
@@ -0,0 +1,47 @@
+package metrics_influxdb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricFilter;
+
+import metrics_influxdb.InfluxdbReporter.Priority;
+
+public class LoadShedderTest {
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void failuresDontReduceTheByteBudgetWithoutTimeBudget() {
+		LoadShedder shedder = newShedder(100000, 0);
+		shedder.sent(0, 100000, SECOND, 0, false);
+		shedder.sent(0, 100000, SECOND, 0, false);
+		assertEquals(100000, shedder.budget(0, 0));
+	}
+
+	@Test
+	public void failuresHalveTheAllowanceWithTimeBudget() {
+		LoadShedder shedder = newShedder(100000, SECOND);
+		shedder.sent(0, 100000, SECOND / 10, 0, false);
+		assertEquals(50000, shedder.budget(0, 0));
+		assertEquals(100000, shedder.budget(1, 0));
+		shedder.sent(0, 50000, SECOND / 10, 0, true);
+		assertEquals(100000, shedder.budget(0, 0));
+	}
+
+	@Test
+	public void slowSendsReduceTheAllowanceToWhatIsSentInTime() {
+		LoadShedder shedder = newShedder(100000, SECOND);
+		shedder.sent(0, 100000, 2 * SECOND, 0, true);
+		assertEquals(50000, shedder.budget(0, 0));
+		// half of the time budget left after the collection of the metrics
+		assertEquals(25000, shedder.budget(0, SECOND / 2));
+		assertEquals(0, shedder.budget(0, SECOND));
+	}
+
+	private static LoadShedder newShedder(long maxBytes, long maxNanos) {
+		return new LoadShedder(maxBytes, maxNanos, new MetricFilter[0], new Priority[0], 2);
+	}
+}
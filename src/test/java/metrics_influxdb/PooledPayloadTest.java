@@ -0,0 +1,59 @@
+package metrics_influxdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class PooledPayloadTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String[] NAMES = {
+		"ascii", "caf\u00e9", "\u20ac\u20ac", "\ud83d\ude00 smiley", "lone \ud83d high", "lone \ude00 low", "end \ud83d"
+	};
+
+	@Test
+	public void streamsTheRequestThroughASingleSlab() throws Exception {
+		BufferPool pool = new BufferPool(1024 * 1024, 512);
+		JsonBuilder request = request(200);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PooledPayload payload = new PooledPayload(pool, out);
+		request.appendTo(payload, 0, request.seriesCount());
+		payload.finish();
+		payload.release();
+
+		StringBuilder expected = new StringBuilder();
+		request.appendTo(expected, 0, request.seriesCount());
+		assertArrayEquals(expected.toString().getBytes(UTF_8), out.toByteArray());
+		assertEquals(out.size(), payload.length());
+		assertEquals(512, pool.getAllocatedBytes());
+		assertEquals(0, pool.getLeasedBytes());
+	}
+
+	@Test
+	public void computesTheEncodedLength() throws Exception {
+		JsonBuilder request = request(50);
+		for (int from = 0; from < request.seriesCount(); from += 7) {
+			int to = Math.min(request.seriesCount(), from + 11);
+			StringBuilder chars = new StringBuilder();
+			request.appendTo(chars, from, to);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			PooledPayload payload = new PooledPayload(null, out);
+			request.appendTo(payload, from, to);
+			payload.finish();
+			assertEquals(chars.toString().getBytes(UTF_8).length, PooledPayload.encodedLength(request, from, to));
+			assertEquals(out.size(), PooledPayload.encodedLength(request, from, to));
+		}
+	}
+
+	private static JsonBuilder request(int nbSeries) {
+		JsonBuilder request = new LineProtocolBuilder();
+		request.reset();
+		for (int i = 0; i < nbSeries; i++) {
+			request.appendSeries("", NAMES[i % NAMES.length] + "-" + i, ".count", new String[]{"count"}, new Object[][]{{(long) i}});
+		}
+		return request;
+	}
+}
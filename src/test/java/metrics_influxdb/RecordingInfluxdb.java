@@ -0,0 +1,69 @@
+package metrics_influxdb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Record the requests sent, as JSON, or fail them while failing is set.
+ */
+class RecordingInfluxdb implements Influxdb {
+	final List<String> requests = new CopyOnWriteArrayList<String>();
+	volatile boolean failing;
+	private final long latencyMillis;
+	private final JsonBuilder request = newRequest();
+
+	RecordingInfluxdb(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	@Override
+	public void resetRequest() {
+		request.reset();
+	}
+
+	@Override
+	public boolean hasSeriesData() {
+		return request.hasSeriesData();
+	}
+
+	@Override
+	public long convertTimestamp(long timestamp) {
+		return timestamp;
+	}
+
+	@Override
+	public void appendSeries(String namePrefix, String name, String nameSuffix, String[] columns, Object[][] points) {
+		request.appendSeries(namePrefix, name, nameSuffix, columns, points);
+	}
+
+	@Override
+	public int sendRequest(boolean throwExc, boolean printJson) throws Exception {
+		return sendRequest(request, throwExc, printJson);
+	}
+
+	@Override
+	public JsonBuilder newRequest() {
+		JsonBuilder request = new JsonBuilderDefault();
+		request.reset();
+		return request;
+	}
+
+	@Override
+	public JsonBuilder recycleRequest(JsonBuilder request) {
+		request.reset();
+		return request;
+	}
+
+	@Override
+	public int sendRequest(JsonBuilder request, boolean throwExc, boolean printJson) throws Exception {
+		if (failing) {
+			throw new IOException("failing");
+		}
+		requests.add(request.toJsonString());
+		if (latencyMillis > 0) {
+			Thread.sleep(latencyMillis);
+		}
+		return 0;
+	}
+}
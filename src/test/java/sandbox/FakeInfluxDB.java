@@ -0,0 +1,265 @@
+package sandbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in of InfluxDB, to test the transports without a server.
+ *
+ * It listens on loopback for :
+ * <ul>
+ * <li>HTTP /ping (answers with the configured version, none to look like 0.8)</li>
+ * <li>HTTP /db/&lt;db&gt;/series (JSON series, InfluxDB 0.8)</li>
+ * <li>HTTP /write (line protocol, InfluxDB 0.9+), gzip encoded bodies are accepted</li>
+ * <li>UDP (JSON series, one or more per datagram)</li>
+ * </ul>
+ * and counts the received series and points. Latency, HTTP errors and datagram loss can be injected.
+ */
+public class FakeInfluxDB {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The version returned by /ping (header X-Influxdb-Version), null to look like 0.8 */
+	public volatile String version = null;
+	/** The delay (in milliseconds) before answering to a HTTP write */
+	public volatile long latencyMillis = 0;
+	/** The probability [0, 1] to answer a HTTP write with an error 500 (the points are not counted) */
+	public volatile double errorRate = 0;
+	/** The probability [0, 1] to drop a received datagram */
+	public volatile double lossRate = 0;
+
+	public final AtomicLong requests = new AtomicLong();
+	public final AtomicLong errors = new AtomicLong();
+	/** The bytes received, as sent (gzip encoded or not) */
+	public final AtomicLong bytes = new AtomicLong();
+	public final AtomicLong datagrams = new AtomicLong();
+	public final AtomicLong droppedDatagrams = new AtomicLong();
+	public final AtomicLong series = new AtomicLong();
+	public final AtomicLong points = new AtomicLong();
+
+	private final Random random = new Random();
+	private HttpServer http;
+	private ExecutorService httpExecutor;
+	private DatagramChannel udp;
+	private Thread udpThread;
+
+	/**
+	 * Start the listeners on ephemeral ports of the loopback, see {@link #httpPort()} and {@link #udpPort()}.
+	 */
+	public FakeInfluxDB start() throws IOException {
+		http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		http.createContext("/ping", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String v = version;
+				if (v != null) {
+					exchange.getResponseHeaders().add("X-Influxdb-Version", v);
+				}
+				exchange.sendResponseHeaders(204, -1);
+				exchange.close();
+			}
+		});
+		http.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleWrite(exchange);
+			}
+		});
+		httpExecutor = Executors.newCachedThreadPool();
+		http.setExecutor(httpExecutor);
+		http.start();
+
+		udp = DatagramChannel.open();
+		// large enough to not lose bursts of datagrams (only the injected loss is wanted)
+		udp.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024 * 1024);
+		udp.bind(new InetSocketAddress("127.0.0.1", 0));
+		udpThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receiveDatagrams();
+			}
+		}, "fake-influxdb-udp");
+		udpThread.setDaemon(true);
+		udpThread.start();
+		return this;
+	}
+
+	public void stop() throws IOException {
+		http.stop(0);
+		httpExecutor.shutdownNow();
+		udp.close();
+	}
+
+	public int httpPort() {
+		return http.getAddress().getPort();
+	}
+
+	public int udpPort() {
+		return udp.socket().getLocalPort();
+	}
+
+	public void resetCounters() {
+		requests.set(0);
+		errors.set(0);
+		bytes.set(0);
+		datagrams.set(0);
+		droppedDatagrams.set(0);
+		series.set(0);
+		points.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "requests=" + requests + ", errors=" + errors + ", bytes=" + bytes
+			+ ", datagrams=" + datagrams + ", droppedDatagrams=" + droppedDatagrams
+			+ ", series=" + series + ", points=" + points;
+	}
+
+	private void handleWrite(HttpExchange exchange) throws IOException {
+		try {
+			byte[] raw = read(exchange.getRequestBody());
+			requests.incrementAndGet();
+			bytes.addAndGet(raw.length);
+			InputStream in = new ByteArrayInputStream(raw);
+			if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+				in = new GZIPInputStream(in);
+			}
+			String body = new String(read(in), UTF_8);
+			if (latencyMillis > 0) {
+				Thread.sleep(latencyMillis);
+			}
+			if (errorRate > 0 && random.nextDouble() < errorRate) {
+				errors.incrementAndGet();
+				exchange.sendResponseHeaders(500, -1);
+				return;
+			}
+			String path = exchange.getRequestURI().getPath();
+			if (path.endsWith("/write")) {
+				countLines(body);
+				exchange.sendResponseHeaders(204, -1);
+			} else if (path.endsWith("/series")) {
+				countJson(body);
+				exchange.sendResponseHeaders(200, -1);
+			} else {
+				exchange.sendResponseHeaders(404, -1);
+			}
+		} catch (InterruptedException e) {
+			exchange.sendResponseHeaders(503, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void receiveDatagrams() {
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+		try {
+			while (true) {
+				buffer.clear();
+				udp.receive(buffer);
+				buffer.flip();
+				datagrams.incrementAndGet();
+				if (lossRate > 0 && random.nextDouble() < lossRate) {
+					droppedDatagrams.incrementAndGet();
+					continue;
+				}
+				bytes.addAndGet(buffer.remaining());
+				countJson(UTF_8.decode(buffer).toString());
+			}
+		} catch (ClosedChannelException e) {
+			// stopped
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Count the series and the rows of the "points" of JSON series.
+	 */
+	void countJson(String json) {
+		int from = 0;
+		while ((from = json.indexOf("\"points\":[", from)) >= 0) {
+			series.incrementAndGet();
+			from += "\"points\":[".length();
+			int depth = 1;
+			boolean inString = false;
+			for (; from < json.length() && depth > 0; from++) {
+				char c = json.charAt(from);
+				if (inString) {
+					if (c == '\\') {
+						from++;
+					} else if (c == '"') {
+						inString = false;
+					}
+				} else if (c == '"') {
+					inString = true;
+				} else if (c == '[') {
+					if (depth == 1) {
+						points.incrementAndGet();
+					}
+					depth++;
+				} else if (c == ']') {
+					depth--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Count the lines of line protocol (a point per line), every line is considered as a series.
+	 */
+	void countLines(String lines) {
+		int start = 0;
+		while (start < lines.length()) {
+			int end = lines.indexOf('\n', start);
+			if (end < 0) {
+				end = lines.length();
+			}
+			if (end > start) {
+				series.incrementAndGet();
+				points.incrementAndGet();
+			}
+			start = end + 1;
+		}
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Run a fake server until the process is killed.
+	 */
+	public static void main(String[] args) throws Exception {
+		FakeInfluxDB server = new FakeInfluxDB().start();
+		if (args.length > 0) {
+			server.version = args[0];
+		}
+		System.out.println("listening on http://127.0.0.1:" + server.httpPort() + " and udp://127.0.0.1:" + server.udpPort());
+		while (true) {
+			TimeUnit.SECONDS.sleep(10);
+			System.out.println(server);
+		}
+	}
+}
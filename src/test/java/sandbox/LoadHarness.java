@@ -0,0 +1,176 @@
+package sandbox;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import metrics_influxdb.InfluxdbHttp;
+import metrics_influxdb.InfluxdbReporter;
+import metrics_influxdb.InfluxdbUdp;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Drive an InfluxdbReporter against a {@link FakeInfluxDB}, and print the throughput
+ * (points/sec), the latency of the ticks (report()) and the loss.
+ *
+ * Configured by environment variables :
+ * <ul>
+ * <li>LOAD_TRANSPORT : http-json (InfluxDB 0.8), http-line (InfluxDB 1.x), udp (default http-json)</li>
+ * <li>LOAD_METRICS : the number of metrics of each type (gauge, counter, histogram, meter, timer) (default 200)</li>
+ * <li>LOAD_TICKS_PER_SECOND : the number of reports per second (default 2)</li>
+ * <li>LOAD_DURATION : the duration of the run in seconds (default 20)</li>
+ * <li>LOAD_LATENCY : the latency (ms) of the fake server (default 0)</li>
+ * <li>LOAD_ERROR_RATE : the rate [0, 1] of HTTP errors of the fake server (default 0)</li>
+ * <li>LOAD_LOSS_RATE : the rate [0, 1] of datagrams dropped by the fake server (default 0)</li>
+ * </ul>
+ */
+public class LoadHarness {
+
+	public static void main(String[] args) throws Exception {
+		String transport = getEnv("LOAD_TRANSPORT", "http-json");
+		int nbMetrics = Integer.parseInt(getEnv("LOAD_METRICS", "200"));
+		double ticksPerSecond = Double.parseDouble(getEnv("LOAD_TICKS_PER_SECOND", "2"));
+		int duration = Integer.parseInt(getEnv("LOAD_DURATION", "20"));
+
+		final FakeInfluxDB server = new FakeInfluxDB().start();
+		server.latencyMillis = Long.parseLong(getEnv("LOAD_LATENCY", "0"));
+		server.errorRate = Double.parseDouble(getEnv("LOAD_ERROR_RATE", "0"));
+		server.lossRate = Double.parseDouble(getEnv("LOAD_LOSS_RATE", "0"));
+		if ("http-line".equals(transport)) {
+			server.version = "1.8.0";
+		}
+
+		final MetricRegistry registry = new MetricRegistry();
+		final Updater updater = new Updater(registry, nbMetrics);
+		final InfluxdbReporter reporter = newReporter(registry, transport, server);
+
+		Thread loader = new Thread(updater, "load-updater");
+		loader.setDaemon(true);
+		loader.start();
+
+		final long periodMicros = (long) (1000000 / ticksPerSecond);
+		final int maxTicks = (int) Math.ceil(duration * ticksPerSecond);
+		final long[] tickLatencies = new long[maxTicks];
+		final AtomicInteger nbTicks = new AtomicInteger();
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		long start = System.nanoTime();
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				if (nbTicks.get() >= maxTicks) {
+					return;
+				}
+				long t0 = System.nanoTime();
+				reporter.report();
+				tickLatencies[nbTicks.get()] = System.nanoTime() - t0;
+				nbTicks.incrementAndGet();
+			}
+		}, 0, periodMicros, TimeUnit.MICROSECONDS);
+		while (nbTicks.get() < maxTicks) {
+			Thread.sleep(100);
+		}
+		scheduler.shutdown();
+		scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		updater.stop = true;
+		// let the last datagrams arrive
+		Thread.sleep(500);
+		server.stop();
+
+		long expected = (long) nbTicks.get() * nbMetrics * 5;
+		long received = server.points.get();
+		long[] latencies = Arrays.copyOf(tickLatencies, nbTicks.get());
+		Arrays.sort(latencies);
+		System.out.println("transport      : " + transport);
+		System.out.println("metrics        : " + nbMetrics * 5 + " (" + nbMetrics + " of each type)");
+		System.out.println("ticks          : " + nbTicks.get() + " in " + String.format("%.1f", elapsed) + "s");
+		System.out.println("server         : " + server);
+		System.out.println("points/sec     : " + String.format("%.0f", received / elapsed));
+		System.out.println("tick latency   : p50=" + millis(latencies, 0.5) + "ms p90=" + millis(latencies, 0.9) + "ms p99=" + millis(latencies, 0.99) + "ms max=" + millis(latencies, 1.0) + "ms");
+		System.out.println("loss           : " + (expected - received) + " of " + expected + " points (" + String.format("%.2f", 100.0 * (expected - received) / expected) + "%)");
+		System.exit(0);
+	}
+
+	private static InfluxdbReporter newReporter(MetricRegistry registry, String transport, FakeInfluxDB server) throws Exception {
+		InfluxdbReporter.Builder builder = InfluxdbReporter
+			.forRegistry(registry)
+			.prefixedWith("load")
+			.convertRatesTo(TimeUnit.SECONDS)
+			.convertDurationsTo(TimeUnit.MILLISECONDS)
+			.filter(MetricFilter.ALL);
+		if ("udp".equals(transport)) {
+			return builder.build(new InfluxdbUdp("127.0.0.1", server.udpPort()));
+		}
+		InfluxdbHttp influxdb = new InfluxdbHttp("127.0.0.1", server.httpPort(), "load", "u", "p");
+		return builder.build(influxdb);
+	}
+
+	private static String millis(long[] sortedNanos, double quantile) {
+		if (sortedNanos.length == 0) {
+			return "-";
+		}
+		int i = (int) Math.min(sortedNanos.length - 1, Math.ceil(quantile * sortedNanos.length) - 1);
+		return String.format("%.2f", sortedNanos[Math.max(0, i)] / 1e6);
+	}
+
+	/**
+	 * Register nbMetrics metrics of each type, and update them continuously.
+	 */
+	static class Updater implements Runnable {
+		final Counter[] counters;
+		final Histogram[] histograms;
+		final Meter[] meters;
+		final Timer[] timers;
+		volatile boolean stop = false;
+
+		Updater(MetricRegistry registry, int nbMetrics) {
+			counters = new Counter[nbMetrics];
+			histograms = new Histogram[nbMetrics];
+			meters = new Meter[nbMetrics];
+			timers = new Timer[nbMetrics];
+			for (int i = 0; i < nbMetrics; i++) {
+				final int id = i;
+				registry.register(MetricRegistry.name("gauge", String.valueOf(i)), new Gauge<Integer>() {
+					@Override
+					public Integer getValue() {
+						return id;
+					}
+				});
+				counters[i] = registry.counter(MetricRegistry.name("counter", String.valueOf(i)));
+				histograms[i] = registry.histogram(MetricRegistry.name("histogram", String.valueOf(i)));
+				meters[i] = registry.meter(MetricRegistry.name("meter", String.valueOf(i)));
+				timers[i] = registry.timer(MetricRegistry.name("timer", String.valueOf(i)));
+			}
+		}
+
+		@Override
+		public void run() {
+			Random random = new Random();
+			while (!stop) {
+				int i = random.nextInt(counters.length);
+				counters[i].inc();
+				histograms[i].update(random.nextInt(1000));
+				meters[i].mark();
+				timers[i].update(random.nextInt(100000), TimeUnit.MICROSECONDS);
+				if ((i & 0xff) == 0) {
+					Thread.yield();
+				}
+			}
+		}
+	}
+
+	private static String getEnv(String key, String ifMissing) {
+		String envVal = System.getenv(key);
+		return (envVal == null) ? ifMissing : envVal;
+	}
+}